@@ -0,0 +1,935 @@
+/*
+ * Create Date: 2026-10-19 11:40:05
+ */
+package com.github.stuxuhai.jcron;
+
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.math.LongMath;
+
+/**
+ * The compiled form of a {@link CronExpression}. Every field is a bitmask, so the search for the next or previous
+ * fire time is a handful of bit scans per field instead of a walk over parsed value lists.
+ *
+ * <p>
+ * Which days of a month match only depends on the length of the month and on the day-of-week of its first day, so
+ * day-of-month and day-of-week are compiled into one mask for each of those 28 month shapes. The days of an
+ * {@link ExclusionCalendar} are cleared from the mask of each month as it is looked up.
+ */
+final class CompiledExpression {
+
+    static final int MONTH_SHAPES = 28;
+    static final long NONE = Long.MIN_VALUE;
+
+    private static final byte FIELDS = 0;
+    private static final byte EVERY = 1;
+
+    private static final long DAY = 86400000L;
+
+    private static final DateTime[] SHAPE_SAMPLES = new DateTime[MONTH_SHAPES];
+    private static final Interner<CompiledExpression> EXPRESSIONS = Interners.newWeakInterner();
+    private static final Interner<DayTable> DAY_TABLES = Interners.newWeakInterner();
+    private static final Interner<YearSet> YEAR_SETS = Interners.newWeakInterner();
+
+    static {
+        int found = 0;
+        for (DateTime dateTime = new DateTime(2000, 1, 1, 12, 0, DateTimeZone.UTC); found < MONTH_SHAPES; dateTime = dateTime.plusMonths(1)) {
+            int shape = shape(dateTime.dayOfMonth().getMaximumValue(), dateTime.getDayOfWeek());
+            if (SHAPE_SAMPLES[shape] == null) {
+                SHAPE_SAMPLES[shape] = dateTime;
+                found++;
+            }
+        }
+    }
+
+    private final long seconds;
+    private final long minutes;
+    private final long hours;
+    private final long months;
+    private final YearSet years;
+    private final DayTable days;
+    private final ExclusionCalendar exclusions;
+
+    // Fixed-period schedules fire whenever (millis + offset - phase) is a multiple of period, where offset is the
+    // zone offset, or 0 for schedules anchored to UTC.
+    private final long period;
+    private final long phase;
+    private final boolean anchoredToUTC;
+    // an intersection may leave a field without any value, and the calendar walk would then scan up to year 9999
+    private final boolean empty;
+
+    private CompiledExpression(long seconds, long minutes, long hours, long months, YearSet years, long[] days, ExclusionCalendar exclusions) {
+        this.seconds = seconds;
+        this.minutes = minutes;
+        this.hours = hours;
+        this.months = months;
+        this.years = YEAR_SETS.intern(years);
+        this.days = DAY_TABLES.intern(new DayTable(days));
+        this.exclusions = exclusions;
+        this.anchoredToUTC = false;
+        this.empty = seconds == 0 || minutes == 0 || hours == 0 || months == 0 || years.next(0) < 0 || Arrays.equals(days, new long[MONTH_SHAPES]);
+
+        long[] periodAndPhase = detectPeriod();
+        this.period = periodAndPhase[0];
+        this.phase = periodAndPhase[1];
+    }
+
+    private CompiledExpression(long period) {
+        this.seconds = 0;
+        this.minutes = 0;
+        this.hours = 0;
+        this.months = 0;
+        this.years = YearSet.EMPTY;
+        this.days = DAY_TABLES.intern(new DayTable(new long[MONTH_SHAPES]));
+        this.exclusions = null;
+        this.period = period;
+        this.phase = 0;
+        this.anchoredToUTC = true;
+        this.empty = false;
+    }
+
+    /**
+     * Returns a schedule firing every {@code period} milliseconds, counted from 1970-01-01T00:00:00Z.
+     */
+    static CompiledExpression every(long period) {
+        return EXPRESSIONS.intern(new CompiledExpression(period));
+    }
+
+    /**
+     * Returns the compiled form of the given fields. Compiled forms, day tables and year sets are interned, so the
+     * millions of jobs sharing a few schedules, or only their day fields such as {@code L} or {@code 15W}, share one
+     * copy of them.
+     */
+    static CompiledExpression of(long seconds, long minutes, long hours, long months, YearSet years, long[] days) {
+        return of(seconds, minutes, hours, months, years, days, null);
+    }
+
+    private static CompiledExpression of(long seconds, long minutes, long hours, long months, YearSet years, long[] days,
+            ExclusionCalendar exclusions) {
+        return EXPRESSIONS.intern(new CompiledExpression(seconds, minutes, hours, months, years, days, exclusions));
+    }
+
+    /**
+     * Returns this schedule without the days of {@code calendar}, in addition to the days already excluded.
+     */
+    CompiledExpression excluding(ExclusionCalendar calendar) {
+        if (anchoredToUTC) {
+            throw new IllegalArgumentException("A schedule anchored to UTC does not fire on days, so it cannot exclude " + calendar);
+        }
+        return of(seconds, minutes, hours, months, years, days.masks, exclusions == null ? calendar : exclusions.union(calendar));
+    }
+
+    /**
+     * Returns the schedule firing when both schedules fire, or null if it cannot be compiled exactly, which is the
+     * case when only one of them is anchored to UTC. Field-based schedules intersect field by field, as a fire time
+     * is a combination of field values; schedules anchored to UTC intersect at the least common multiple of their
+     * periods.
+     */
+    CompiledExpression intersect(CompiledExpression other) {
+        if (anchoredToUTC || other.anchoredToUTC) {
+            if (!anchoredToUTC || !other.anchoredToUTC) {
+                return null;
+            }
+            long gcd = LongMath.gcd(period, other.period);
+            return every(LongMath.checkedMultiply(period / gcd, other.period));
+        }
+
+        long[] intersection = new long[MONTH_SHAPES];
+        for (int shape = 0; shape < MONTH_SHAPES; shape++) {
+            intersection[shape] = days.masks[shape] & other.days.masks[shape];
+        }
+        ExclusionCalendar unionOfExclusions = exclusions == null ? other.exclusions
+                : other.exclusions == null || exclusions.equals(other.exclusions) ? exclusions : exclusions.union(other.exclusions);
+        return of(seconds & other.seconds, minutes & other.minutes, hours & other.hours, months & other.months, years.intersect(other.years),
+                intersection, unionOfExclusions);
+    }
+
+    /**
+     * Returns the schedule firing when either schedule fires, or null if it cannot be compiled exactly. A union of
+     * field-based schedules is only a field-based schedule itself when they differ in at most one field, as in
+     * {@code 0 0 9 * * ?} and {@code 0 0 17 * * ?}, and exclude the same days.
+     */
+    CompiledExpression union(CompiledExpression other) {
+        if (anchoredToUTC || other.anchoredToUTC) {
+            return anchoredToUTC && other.anchoredToUTC && period == other.period ? this : null;
+        }
+        if (!Objects.equal(exclusions, other.exclusions)) {
+            return null;
+        }
+
+        boolean sameDays = days.equals(other.days);
+        boolean sameYears = years.equals(other.years);
+        int differences = (seconds != other.seconds ? 1 : 0) + (minutes != other.minutes ? 1 : 0) + (hours != other.hours ? 1 : 0)
+                + (months != other.months ? 1 : 0) + (sameYears ? 0 : 1) + (sameDays ? 0 : 1);
+        if (differences > 1) {
+            return null;
+        }
+
+        YearSet union = sameYears ? years : years.union(other.years);
+        if (union == null) {
+            return null;
+        }
+        long[] unionOfDays = new long[MONTH_SHAPES];
+        for (int shape = 0; shape < MONTH_SHAPES; shape++) {
+            unionOfDays[shape] = days.masks[shape] | other.days.masks[shape];
+        }
+        return of(seconds | other.seconds, minutes | other.minutes, hours | other.hours, months | other.months, union,
+                unionOfDays, exclusions);
+    }
+
+    /**
+     * Detects schedules that only restrict seconds and minutes in a regular way, such as {@code 0 0/15 * * * ?}.
+     * They fire at a fixed period of local time which divides an hour, so the next fire time is plain arithmetic.
+     */
+    private long[] detectPeriod() {
+        long[] none = { 0, 0 };
+        if (exclusions != null || hours != fullMask(0, 23) || months != fullMask(1, 12)) {
+            return none;
+        }
+        for (int shape = 0; shape < MONTH_SHAPES; shape++) {
+            if (days.masks[shape] != fullMask(1, 28 + shape / 7)) {
+                return none;
+            }
+        }
+        if (!years.isContiguous()) {
+            return none;
+        }
+
+        int secondStep = step(seconds, 60);
+        int minuteStep = step(minutes, 60);
+        if (secondStep == 60 && minuteStep > 0) {
+            return new long[] { minuteStep * 60000L, (Long.numberOfTrailingZeros(minutes) * 60 + Long.numberOfTrailingZeros(seconds)) * 1000L };
+        } else if (secondStep > 0 && minuteStep == 1) {
+            return new long[] { secondStep * 1000L, Long.numberOfTrailingZeros(seconds) * 1000L };
+        }
+        return none;
+    }
+
+    /**
+     * Returns d if the bits of {@code mask} within [0, size) are evenly spaced by d and repeat with a period of size,
+     * otherwise 0.
+     */
+    private static int step(long mask, int size) {
+        int first = nextBit(mask, 0);
+        if (first < 0) {
+            return 0;
+        }
+        int second = nextBit(mask, first + 1);
+        int step = second < 0 ? size : second - first;
+        if (size % step != 0) {
+            return 0;
+        }
+
+        long expected = 0;
+        for (int i = first; i < size; i += step) {
+            expected |= 1L << i;
+        }
+        return first < step && mask == expected ? step : 0;
+    }
+
+    private static long fullMask(int from, int to) {
+        return (-1L >>> (63 - to)) & (-1L << from);
+    }
+
+    /**
+     * Returns a first day of a month with the given shape, used to compile the day fields.
+     */
+    static DateTime sample(int shape) {
+        return SHAPE_SAMPLES[shape];
+    }
+
+    static int shape(int lengthOfMonth, int dayOfWeekOfFirstDay) {
+        return (lengthOfMonth - 28) * 7 + dayOfWeekOfFirstDay - 1;
+    }
+
+    static long toMask(Iterable<Integer> values) {
+        long mask = 0;
+        for (int value : values) {
+            if (value >= 0 && value < 64) {
+                mask |= 1L << value;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the smallest set bit not less than {@code from}, or -1.
+     */
+    static int nextBit(long mask, int from) {
+        if (from >= 64) {
+            return -1;
+        }
+        long m = mask & (-1L << Math.max(from, 0));
+        return m == 0 ? -1 : Long.numberOfTrailingZeros(m);
+    }
+
+    /**
+     * Returns the largest set bit not greater than {@code from}, or -1.
+     */
+    static int previousBit(long mask, int from) {
+        if (from < 0) {
+            return -1;
+        }
+        long m = from >= 63 ? mask : mask & ((1L << (from + 1)) - 1);
+        return m == 0 ? -1 : 63 - Long.numberOfLeadingZeros(m);
+    }
+
+    /**
+     * Resolves the next fire time with modular arithmetic on the local epoch millis when it falls on the same local
+     * day as {@code after}, which is the common case for dense schedules such as {@code *\/5 * 9-17 * * ?}. Returns
+     * {@link #NONE} when the day does not match or has no fire time left, or when the zone offset changes in between,
+     * and the caller falls back to the calendar walk.
+     */
+    private long nextInSameDay(Chronology chronology, Chronology utc, long after) {
+        DateTimeZone zone = chronology.getZone();
+        int offset = zone.getOffset(after);
+        long local = after + offset;
+        long dayStart = LongMath.divide(local, DAY, RoundingMode.FLOOR) * DAY;
+        int year = utc.year().get(local);
+        int month = utc.monthOfYear().get(local);
+        if (!years.contains(year) || (months & (1L << month)) == 0 || (dayMask(utc, year, month) & (1L << utc.dayOfMonth().get(local))) == 0) {
+            return NONE;
+        }
+
+        // the first candidate is the next whole second, as fire times are truncated to seconds
+        int secondOfDay = (int) ((local - dayStart) / 1000) + 1;
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+        while (hour >= 0 && hour < 24) {
+            if ((hours & (1L << hour)) == 0) {
+                hour = nextBit(hours, hour);
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            if ((minutes & (1L << minute)) == 0) {
+                minute = nextBit(minutes, minute);
+                second = 0;
+                if (minute < 0) {
+                    hour++;
+                    minute = 0;
+                }
+                continue;
+            }
+            second = nextBit(seconds, second);
+            if (second < 0) {
+                minute++;
+                second = 0;
+                if (minute == 60) {
+                    hour++;
+                    minute = 0;
+                }
+                continue;
+            }
+
+            long millis = dayStart + (hour * 3600 + minute * 60 + second) * 1000L - offset;
+            return isFirstOccurrence(zone, millis, offset) ? millis : NONE;
+        }
+        return NONE;
+    }
+
+    /**
+     * The mirror of {@link #nextInSameDay(Chronology, Chronology, long)} for the previous fire time.
+     */
+    private long previousInSameDay(Chronology chronology, Chronology utc, long before) {
+        DateTimeZone zone = chronology.getZone();
+        int offset = zone.getOffset(before);
+        long local = before + offset;
+        long dayStart = LongMath.divide(local, DAY, RoundingMode.FLOOR) * DAY;
+        if (local == dayStart) {
+            return NONE;
+        }
+        int year = utc.year().get(local);
+        int month = utc.monthOfYear().get(local);
+        if (!years.contains(year) || (months & (1L << month)) == 0 || (dayMask(utc, year, month) & (1L << utc.dayOfMonth().get(local))) == 0) {
+            return NONE;
+        }
+
+        // the last candidate is the previous whole second, as fire times are truncated to seconds
+        int secondOfDay = (int) ((local - 1 - dayStart) / 1000);
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+        while (hour >= 0) {
+            if ((hours & (1L << hour)) == 0) {
+                hour = previousBit(hours, hour);
+                minute = 59;
+                second = 59;
+                continue;
+            }
+            if ((minutes & (1L << minute)) == 0) {
+                minute = previousBit(minutes, minute);
+                second = 59;
+                if (minute < 0) {
+                    hour--;
+                    minute = 59;
+                }
+                continue;
+            }
+            second = previousBit(seconds, second);
+            if (second < 0) {
+                minute--;
+                second = 59;
+                if (minute < 0) {
+                    hour--;
+                    minute = 59;
+                }
+                continue;
+            }
+
+            long millis = dayStart + (hour * 3600 + minute * 60 + second) * 1000L - offset;
+            return isFirstOccurrence(zone, millis, offset) ? millis : NONE;
+        }
+        return NONE;
+    }
+
+    private boolean inYears(Chronology chronology, long millis) {
+        return years.contains(chronology.year().get(millis));
+    }
+
+    private long dayMask(Chronology utc, int year, int month) {
+        long millis = utc.getDateTimeMillis(year, month, 1, 0);
+        int lengthOfMonth = utc.dayOfMonth().getMaximumValue(millis);
+        long mask = days.masks[shape(lengthOfMonth, utc.dayOfWeek().get(millis))];
+        return exclusions == null ? mask : mask & ~(exclusions.excludedDays(year, month) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns whether {@code millis} is a fire time in the given chronology. The instant is decomposed once and every
+     * field is tested against its mask, with the day fields looked up in the table for the shape of the month.
+     */
+    boolean matches(long millis, Chronology chronology) {
+        if (anchoredToUTC) {
+            return LongMath.mod(millis - phase, period) == 0;
+        }
+
+        DateTimeZone zone = chronology.getZone();
+        int offset = zone.getOffset(millis);
+        long local = millis + offset;
+        long dayStart = LongMath.divide(local, DAY, RoundingMode.FLOOR) * DAY;
+        int millisOfDay = (int) (local - dayStart);
+        if (millisOfDay % 1000 != 0 || (seconds & (1L << (millisOfDay / 1000 % 60))) == 0 || (minutes & (1L << (millisOfDay / 60000 % 60))) == 0
+                || (hours & (1L << (millisOfDay / 3600000))) == 0) {
+            return false;
+        }
+
+        Chronology utc = chronology.withUTC();
+        int year = utc.year().get(local);
+        int month = utc.monthOfYear().get(local);
+        if (!years.contains(year) || (months & (1L << month)) == 0 || (dayMask(utc, year, month) & (1L << utc.dayOfMonth().get(local))) == 0) {
+            return false;
+        }
+
+        return isFirstOccurrence(zone, millis, offset);
+    }
+
+    /**
+     * Returns the start of the second occurrence of the local times repeated by a daylight saving overlap if
+     * {@code before} is within it, otherwise {@code before}. Those local times only fire at their first occurrence,
+     * which is earlier than the start, so no fire time lies between the start and {@code before}.
+     */
+    private static long startOfSecondOccurrence(DateTimeZone zone, long before) {
+        long transition = zone.previousTransition(before) + 1;
+        if (transition < before && before - transition <= zone.getOffset(transition - 1) - zone.getOffset(transition)) {
+            return transition;
+        }
+        return before;
+    }
+
+    /**
+     * Returns whether {@code millis} is at {@code offset} and is the first occurrence of its local time, as the second
+     * occurrence of a local time repeated by a daylight saving overlap is not a fire time.
+     */
+    private static boolean isFirstOccurrence(DateTimeZone zone, long millis, long offset) {
+        return zone.getOffset(millis) == offset && zone.getOffsetFromLocal(millis + offset) == offset;
+    }
+
+    /**
+     * Returns the number of fire times in [{@code start}, {@code end}). The window is split at the zone's offset
+     * transitions into pieces of constant offset, and each piece is counted from the masks: whole days contribute
+     * the number of matching days of each month times the fire times per day, and only the partial days at the
+     * edges are counted time-of-day wise.
+     */
+    long count(long start, long end, Chronology chronology) {
+        if (start >= end) {
+            return 0;
+        }
+        if (anchoredToUTC) {
+            return LongMath.divide(end - 1 - phase, period, RoundingMode.FLOOR) - LongMath.divide(start - 1 - phase, period, RoundingMode.FLOOR);
+        }
+
+        Chronology utc = chronology.withUTC();
+        DateTimeZone zone = chronology.getZone();
+
+        // local times repeated by a daylight saving overlap only fire at their first occurrence, so the local
+        // window of each piece starts after the latest local time already passed
+        long covered = start + zone.getOffset(start);
+        long previous = zone.previousTransition(start + 1) + 1;
+        if (previous <= start && zone.getOffset(previous - 1) > zone.getOffset(previous)) {
+            covered = Math.max(covered, previous + zone.getOffset(previous - 1));
+        }
+
+        long count = 0;
+        for (long from = start; from < end;) {
+            long transition = zone.nextTransition(from);
+            long to = transition > from ? Math.min(transition, end) : end;
+            int offset = zone.getOffset(from);
+            count += countLocal(utc, Math.max(from + offset, covered), to + offset);
+            covered = Math.max(covered, to + offset);
+            from = to;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the fire times in [{@code from}, {@code to}) of local epoch millis.
+     */
+    private long countLocal(Chronology utc, long from, long to) {
+        if (from >= to) {
+            return 0;
+        }
+
+        long firstDay = LongMath.divide(from, DAY, RoundingMode.FLOOR);
+        long lastDay = LongMath.divide(to, DAY, RoundingMode.FLOOR);
+        int fromSecond = (int) LongMath.divide(from - firstDay * DAY, 1000, RoundingMode.CEILING);
+        int toSecond = (int) LongMath.divide(to - lastDay * DAY, 1000, RoundingMode.CEILING);
+        if (firstDay == lastDay) {
+            return matchesDay(utc, firstDay * DAY) ? countTimesBefore(toSecond) - countTimesBefore(fromSecond) : 0;
+        }
+
+        long count = 0;
+        if (matchesDay(utc, firstDay * DAY)) {
+            count += countTimesBefore(86400) - countTimesBefore(fromSecond);
+        }
+        if (matchesDay(utc, lastDay * DAY)) {
+            count += countTimesBefore(toSecond);
+        }
+        if (lastDay - firstDay > 1) {
+            count += countTimesBefore(86400) * countDays(utc, (firstDay + 1) * DAY, (lastDay - 1) * DAY);
+        }
+        return count;
+    }
+
+    private boolean matchesDay(Chronology utc, long local) {
+        int year = utc.year().get(local);
+        int month = utc.monthOfYear().get(local);
+        return years.contains(year) && (months & (1L << month)) != 0 && (dayMask(utc, year, month) & (1L << utc.dayOfMonth().get(local))) != 0;
+    }
+
+    /**
+     * Counts the matching days between the local days of {@code from} and {@code to}, both inclusive, one month at a
+     * time.
+     */
+    private long countDays(Chronology utc, long from, long to) {
+        int year = utc.year().get(from);
+        int month = utc.monthOfYear().get(from);
+        int day = utc.dayOfMonth().get(from);
+        int lastYear = utc.year().get(to);
+        int lastMonth = utc.monthOfYear().get(to);
+
+        long count = 0;
+        while (true) {
+            boolean last = year == lastYear && month == lastMonth;
+            if (years.contains(year) && (months & (1L << month)) != 0) {
+                int lastDay = last ? utc.dayOfMonth().get(to) : 31;
+                count += Long.bitCount(dayMask(utc, year, month) & fullMask(day, lastDay));
+            }
+            if (last) {
+                return count;
+            }
+
+            day = 1;
+            if (++month > 12) {
+                month = 1;
+                year++;
+            }
+        }
+    }
+
+    /**
+     * Counts the fire times of a day whose second-of-day is less than {@code secondOfDay}.
+     */
+    private long countTimesBefore(int secondOfDay) {
+        long perMinute = Long.bitCount(seconds);
+        long perHour = Long.bitCount(minutes) * perMinute;
+        if (secondOfDay >= 86400) {
+            return Long.bitCount(hours) * perHour;
+        }
+
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+        long count = Long.bitCount(hours & ((1L << hour) - 1)) * perHour;
+        if ((hours & (1L << hour)) != 0) {
+            count += Long.bitCount(minutes & ((1L << minute) - 1)) * perMinute;
+            if ((minutes & (1L << minute)) != 0) {
+                count += Long.bitCount(seconds & ((1L << second) - 1));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the first fire time strictly after {@code after} in the given chronology, or {@link #NONE}.
+     */
+    long timeAfter(long after, Chronology chronology) {
+        if (period > 0) {
+            long offset = anchoredToUTC ? 0 : chronology.getZone().getOffset(after);
+            long millis = (LongMath.divide(after + offset - phase, period, RoundingMode.FLOOR) + 1) * period + phase - offset;
+            if (anchoredToUTC || (isFirstOccurrence(chronology.getZone(), millis, offset) && inYears(chronology, millis))) {
+                return millis;
+            }
+        }
+
+        if (empty) {
+            return NONE;
+        }
+
+        Chronology utc = chronology.withUTC();
+        long next = nextInSameDay(chronology, utc, after);
+        if (next != NONE) {
+            return next;
+        }
+
+        int year = chronology.year().get(after);
+        int month = chronology.monthOfYear().get(after);
+        int day = chronology.dayOfMonth().get(after);
+        int hour = chronology.hourOfDay().get(after);
+        int minute = chronology.minuteOfHour().get(after);
+        int second = chronology.secondOfMinute().get(after);
+
+        while (true) {
+            int y = years.next(year);
+            if (y < 0) {
+                return NONE;
+            }
+            if (y != year) {
+                year = y;
+                month = 1;
+                day = 1;
+                hour = 0;
+                minute = 0;
+                second = 0;
+            }
+
+            int mo = nextBit(months, month);
+            if (mo < 0) {
+                year++;
+                month = 1;
+                day = 1;
+                hour = 0;
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            if (mo != month) {
+                month = mo;
+                day = 1;
+                hour = 0;
+                minute = 0;
+                second = 0;
+            }
+
+            int d = nextBit(dayMask(utc, year, month), day);
+            if (d < 0) {
+                month++;
+                day = 1;
+                hour = 0;
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            if (d != day) {
+                day = d;
+                hour = 0;
+                minute = 0;
+                second = 0;
+            }
+
+            int h = nextBit(hours, hour);
+            if (h < 0) {
+                day++;
+                hour = 0;
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            if (h != hour) {
+                hour = h;
+                minute = 0;
+                second = 0;
+            }
+
+            int mi = nextBit(minutes, minute);
+            if (mi < 0) {
+                hour++;
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            if (mi != minute) {
+                minute = mi;
+                second = 0;
+            }
+
+            int s = nextBit(seconds, second);
+            if (s < 0) {
+                minute++;
+                second = 0;
+                continue;
+            }
+            second = s;
+
+            try {
+                long millis = chronology.getDateTimeMillis(year, month, day, hour, minute, second, 0);
+                if (millis > after) {
+                    return millis;
+                }
+            } catch (IllegalArgumentException e) {
+                // the local time falls into a daylight saving gap
+            }
+            second++;
+        }
+    }
+
+    /**
+     * Returns the last fire time strictly before {@code before} in the given chronology, or {@link #NONE}.
+     */
+    long timeBefore(long before, Chronology chronology) {
+        if (!anchoredToUTC) {
+            before = startOfSecondOccurrence(chronology.getZone(), before);
+        }
+        if (period > 0) {
+            long offset = anchoredToUTC ? 0 : chronology.getZone().getOffset(before);
+            long millis = LongMath.divide(before + offset - phase - 1, period, RoundingMode.FLOOR) * period + phase - offset;
+            if (anchoredToUTC || (isFirstOccurrence(chronology.getZone(), millis, offset) && inYears(chronology, millis))) {
+                return millis;
+            }
+        }
+
+        if (empty) {
+            return NONE;
+        }
+
+        Chronology utc = chronology.withUTC();
+        long previous = previousInSameDay(chronology, utc, before);
+        if (previous != NONE) {
+            return previous;
+        }
+
+        // the walk starts from the local time of the last instant before, which is the end of the first occurrence
+        // of an overlap when before is its start
+        int year = chronology.year().get(before - 1);
+        int month = chronology.monthOfYear().get(before - 1);
+        int day = chronology.dayOfMonth().get(before - 1);
+        int hour = chronology.hourOfDay().get(before - 1);
+        int minute = chronology.minuteOfHour().get(before - 1);
+        int second = chronology.secondOfMinute().get(before - 1);
+
+        while (true) {
+            int y = years.previous(year);
+            if (y < 0) {
+                return NONE;
+            }
+            if (y != year) {
+                year = y;
+                month = 12;
+                day = 31;
+                hour = 23;
+                minute = 59;
+                second = 59;
+            }
+
+            int mo = previousBit(months, month);
+            if (mo < 0) {
+                year--;
+                month = 12;
+                day = 31;
+                hour = 23;
+                minute = 59;
+                second = 59;
+                continue;
+            }
+            if (mo != month) {
+                month = mo;
+                day = 31;
+                hour = 23;
+                minute = 59;
+                second = 59;
+            }
+
+            int d = previousBit(dayMask(utc, year, month), day);
+            if (d < 0) {
+                month--;
+                day = 31;
+                hour = 23;
+                minute = 59;
+                second = 59;
+                continue;
+            }
+            if (d != day) {
+                day = d;
+                hour = 23;
+                minute = 59;
+                second = 59;
+            }
+
+            int h = previousBit(hours, hour);
+            if (h < 0) {
+                day--;
+                hour = 23;
+                minute = 59;
+                second = 59;
+                continue;
+            }
+            if (h != hour) {
+                hour = h;
+                minute = 59;
+                second = 59;
+            }
+
+            int mi = previousBit(minutes, minute);
+            if (mi < 0) {
+                hour--;
+                minute = 59;
+                second = 59;
+                continue;
+            }
+            if (mi != minute) {
+                minute = mi;
+                second = 59;
+            }
+
+            int s = previousBit(seconds, second);
+            if (s < 0) {
+                minute--;
+                second = 59;
+                continue;
+            }
+            second = s;
+
+            try {
+                long millis = chronology.getDateTimeMillis(year, month, day, hour, minute, second, 0);
+                if (millis < before) {
+                    return millis;
+                }
+            } catch (IllegalArgumentException e) {
+                // the local time falls into a daylight saving gap
+            }
+            second--;
+        }
+    }
+
+    int encodedLength() {
+        return anchoredToUTC ? 1 + 8 : 1 + 8 + 8 + 4 + 2 + MONTH_SHAPES * 4 + years.encodedLength() + 1
+                + (exclusions == null ? 0 : exclusions.encodedLength());
+    }
+
+    /**
+     * Writes the kind of schedule, then either the period, or the masks of seconds, minutes, hours and months, the
+     * day masks of the month shapes shifted to fit an int, the years and the exclusion calendar if any. {@code L},
+     * {@code W} and {@code #} are already resolved into the day masks.
+     */
+    void writeTo(ByteBuffer buffer) {
+        if (anchoredToUTC) {
+            buffer.put(EVERY);
+            buffer.putLong(period);
+            return;
+        }
+
+        buffer.put(FIELDS);
+        buffer.putLong(seconds);
+        buffer.putLong(minutes);
+        buffer.putInt((int) hours);
+        buffer.putShort((short) months);
+        for (long mask : days.masks) {
+            buffer.putInt((int) (mask >>> 1));
+        }
+        years.writeTo(buffer);
+        buffer.put((byte) (exclusions == null ? 0 : 1));
+        if (exclusions != null) {
+            exclusions.writeTo(buffer);
+        }
+    }
+
+    /**
+     * Reads a schedule written by {@link #writeTo(ByteBuffer)} in the given format version of
+     * {@link CronExpression#toByteArray()}; version 1 has no exclusion calendar.
+     */
+    static CompiledExpression readFrom(ByteBuffer buffer, int version) {
+        byte kind = buffer.get();
+        if (kind == EVERY) {
+            long period = buffer.getLong();
+            if (period <= 0) {
+                throw new IllegalArgumentException("Invalid period: " + period);
+            }
+            return every(period);
+        } else if (kind != FIELDS) {
+            throw new IllegalArgumentException("Unknown kind of schedule: " + kind);
+        }
+
+        long seconds = buffer.getLong() & fullMask(0, 59);
+        long minutes = buffer.getLong() & fullMask(0, 59);
+        long hours = buffer.getInt() & fullMask(0, 23);
+        long months = buffer.getShort() & fullMask(1, 12);
+        long[] days = new long[MONTH_SHAPES];
+        for (int shape = 0; shape < MONTH_SHAPES; shape++) {
+            days[shape] = ((buffer.getInt() & 0xFFFFFFFFL) << 1) & fullMask(1, 28 + shape / 7);
+        }
+        YearSet years = YearSet.readFrom(buffer, CronExpression.YEAR_RANGE);
+        ExclusionCalendar exclusions = version > 1 && buffer.get() != 0 ? ExclusionCalendar.readFrom(buffer) : null;
+        return of(seconds, minutes, hours, months, years, days, exclusions);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(seconds, minutes, hours, months, years, days, exclusions, period, anchoredToUTC);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CompiledExpression)) {
+            return false;
+        }
+
+        CompiledExpression other = (CompiledExpression) obj;
+        return seconds == other.seconds && minutes == other.minutes && hours == other.hours && months == other.months && years.equals(other.years)
+                && days.equals(other.days) && Objects.equal(exclusions, other.exclusions) && period == other.period
+                && anchoredToUTC == other.anchoredToUTC;
+    }
+
+    /**
+     * The day masks of the month shapes, a separate object so that it can be shared.
+     */
+    private static final class DayTable {
+
+        private final long[] masks;
+
+        DayTable(long[] masks) {
+            this.masks = masks;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(masks);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof DayTable && Arrays.equals(masks, ((DayTable) obj).masks);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Create Date: 2026-10-19 17:21:50
+ */
+package com.github.stuxuhai.jcron;
+
+/**
+ * The source of time of a {@link CronThreadPoolExecutor} and the way its timer thread waits for the next fire time.
+ * {@link #SYSTEM} follows the wall clock, {@link SimulatedClock} runs the schedule in virtual time.
+ */
+public interface CronClock {
+
+    CronClock SYSTEM = new SystemClock();
+
+    long currentTimeMillis();
+
+    /**
+     * Called by the timer thread to wait until {@link #currentTimeMillis()} reaches {@code time}, which is
+     * {@link Long#MAX_VALUE} when no job is due. It returns early when {@link #wakeUp(Thread)} is called, and may
+     * return before {@code time} for no reason, as the timer reads the time again anyway.
+     */
+    void sleepUntil(long time);
+
+    /**
+     * Wakes up {@code timer} from {@link #sleepUntil(long)}, or makes its next call return immediately.
+     */
+    void wakeUp(Thread timer);
+
+    /**
+     * Called by {@code timer} when it stops, after which it no longer waits on the clock.
+     */
+    void detach(Thread timer);
+}
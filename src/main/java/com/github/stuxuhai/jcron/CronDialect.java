@@ -0,0 +1,179 @@
+/*
+ * Create Date: 2026-10-19 11:02:17
+ */
+package com.github.stuxuhai.jcron;
+
+import java.text.ParseException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.stuxuhai.jcron.AbstractParser.DurationField;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The cron syntax an expression is written in. Every dialect is normalized into the seven-field form used by
+ * {@link #QUARTZ} and compiled by the same engine. All dialects accept the {@code @yearly}, {@code @annually},
+ * {@code @monthly}, {@code @weekly}, {@code @daily}, {@code @midnight} and {@code @hourly} macros.
+ */
+public enum CronDialect {
+
+    /**
+     * {@code second minute hour day-of-month month day-of-week [year]}, exactly one of the day fields must be
+     * {@code ?}. Day-of-week runs from 1 (Monday) to 7 (Sunday).
+     */
+    QUARTZ,
+
+    /**
+     * {@code minute hour day-of-month month day-of-week} as in crontab and Kubernetes CronJobs. Day-of-week runs
+     * from 0 (Sunday) to 7 (Sunday), and when both day fields are restricted a day matches if either of them does,
+     * unless one of them starts with {@code *} as in Vixie cron.
+     */
+    UNIX,
+
+    /**
+     * {@code second minute hour day-of-month month day-of-week} as in Spring's {@code @Scheduled}. Day-of-week runs
+     * from 0 (Sunday) to 7 (Sunday), {@code ?} is the same as {@code *}, and when both day fields are restricted a
+     * day must match both of them.
+     */
+    SPRING;
+
+    private static final String[] MONTH_NAMES = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+    private static final String[] WEEK_NAMES = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z]{3}");
+    private static final Pattern NUMERIC_PATTERN = Pattern.compile("(\\d+|\\*)(?:-(\\d+))?(?:/(\\d+))?");
+    private static final Map<String, String> MACROS = ImmutableMap.<String, String> builder().put("@yearly", "0 0 0 1 1 ? *")
+            .put("@annually", "0 0 0 1 1 ? *").put("@monthly", "0 0 0 1 * ? *").put("@weekly", "0 0 0 ? * 7 *").put("@daily", "0 0 0 * * ? *")
+            .put("@midnight", "0 0 0 * * ? *").put("@hourly", "0 0 * * * ? *").build();
+
+    String[] normalize(String cronExp) throws ParseException {
+        String trimmed = cronExp.trim();
+        if (trimmed.startsWith("@")) {
+            String macro = MACROS.get(trimmed.toLowerCase());
+            if (macro == null) {
+                throw new ParseException(String.format("Unknown macro: %s.", trimmed), -1);
+            }
+            return macro.split(" ");
+        }
+
+        String[] exp = trimmed.split("\\s+");
+        switch (this) {
+        case UNIX:
+            if (exp.length != 5) {
+                throw new ParseException("Unexpected end of expression.", -1);
+            }
+            return normalizeDays(new String[] { "0", exp[0], exp[1], exp[2], normalizeMonth(exp[3]), normalizeDayOfWeek(exp[4]), "*" });
+        case SPRING:
+            if (exp.length != 6) {
+                throw new ParseException("Unexpected end of expression.", -1);
+            }
+            return normalizeDays(new String[] { exp[0], exp[1], exp[2], exp[3], normalizeMonth(exp[4]), normalizeDayOfWeek(exp[5]), "*" });
+        default:
+            if (exp.length == 6) {
+                String[] newExp = new String[7];
+                System.arraycopy(exp, 0, newExp, 0, exp.length);
+                newExp[DurationField.YEAR.index] = "*";
+                return newExp;
+            }
+            return exp;
+        }
+    }
+
+    /**
+     * Whether a day of {@code cronExp} matches when both day-of-month and day-of-week are restricted: {@code true}
+     * for either, {@code false} for both. As in Vixie cron, a Unix day field starting with {@code *}, as a step over
+     * the whole field does, makes both of them required.
+     */
+    boolean unionOfDays(String cronExp) {
+        if (this != UNIX) {
+            return false;
+        }
+
+        String[] exp = cronExp.trim().split("\\s+");
+        return exp.length != 5 || !(exp[2].startsWith("*") || exp[4].startsWith("*"));
+    }
+
+    boolean allowsBothDays() {
+        return this != QUARTZ;
+    }
+
+    private static String[] normalizeDays(String[] exp) {
+        int dom = DurationField.DAY_OF_MONTH.index;
+        int dow = DurationField.DAY_OF_WEEK.index;
+        if ("?".equals(exp[dom])) {
+            exp[dom] = "*";
+        }
+        if ("?".equals(exp[dow])) {
+            exp[dow] = "*";
+        }
+
+        if ("*".equals(exp[dow])) {
+            exp[dow] = "?";
+        } else if ("*".equals(exp[dom])) {
+            exp[dom] = "?";
+        }
+        return exp;
+    }
+
+    private static String normalizeMonth(String field) {
+        return replaceNames(field, MONTH_NAMES, 1);
+    }
+
+    private static String normalizeDayOfWeek(String field) throws ParseException {
+        if ("*".equals(field) || "?".equals(field)) {
+            return field;
+        }
+
+        String numeric = replaceNames(field, WEEK_NAMES, 0);
+        Splitter splitter = Splitter.on(",").omitEmptyStrings();
+        StringBuilder sb = new StringBuilder();
+        for (String str : splitter.split(numeric)) {
+            Matcher m = NUMERIC_PATTERN.matcher(str);
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+
+            if (!m.matches()) {
+                // L and # modifiers use 1 (Monday) to 7 (Sunday) as well, once Sunday written 0 is moved to 7
+                sb.append(str.startsWith("0") ? "7" + str.substring(1) : str);
+                continue;
+            }
+
+            boolean asterisk = "*".equals(m.group(1));
+            int from = asterisk ? 0 : Integer.parseInt(m.group(1));
+            int to = m.group(2) != null ? Integer.parseInt(m.group(2)) : (asterisk || m.group(3) != null ? 7 : from);
+            int step = m.group(3) != null ? Integer.parseInt(m.group(3)) : 1;
+            if (from > 7 || to > 7 || from > to || step < 1) {
+                throw new ParseException(String.format("Invalid value of %s: %s.", DurationField.DAY_OF_WEEK.name, str), -1);
+            }
+
+            TreeSet<Integer> days = new TreeSet<Integer>();
+            for (int i = from; i <= to; i += step) {
+                days.add(i == 0 ? 7 : i);
+            }
+            sb.append(Joiner.on(',').join(days));
+        }
+
+        return sb.toString();
+    }
+
+    private static String replaceNames(String field, String[] names, int offset) {
+        Matcher m = NAME_PATTERN.matcher(field);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String replacement = m.group();
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(m.group())) {
+                    replacement = String.valueOf(i + offset);
+                    break;
+                }
+            }
+            m.appendReplacement(sb, replacement);
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+}
@@ -4,31 +4,45 @@
  */
 package com.github.stuxuhai.jcron;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.joda.time.Chronology;
 import org.joda.time.DateTime;
-import org.joda.time.MutableDateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
 
 import com.github.stuxuhai.jcron.AbstractParser.DurationField;
 import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Range;
+import com.google.common.math.LongMath;
 
 public class CronExpression {
 
+    // the parsers only live while compiling, an expression keeps its source and the shared compiled form
     private String cronExp;
-    private List<AbstractParser> secondPasers;
-    private List<AbstractParser> minutePasers;
-    private List<AbstractParser> hourPasers;
-    private List<AbstractParser> dayOfMonthPasers;
-    private List<AbstractParser> monthPasers;
-    private List<AbstractParser> dayOfWeekPasers;
-    private List<AbstractParser> yearPasers;
+    // null for an expression derived from others, whose hash keys decide its fire times along with their fields
+    private String hashKey;
+    private CronDialect dialect;
+    private volatile CompiledExpression compiled;
 
     private static final Range<Integer> SECOND_RANGE = Range.closed(0, 59);
     private static final Range<Integer> MINUTE_RANGE = Range.closed(0, 59);
@@ -36,268 +50,525 @@ public class CronExpression {
     private static final Range<Integer> DAY_OF_MONTH_RANGE = Range.closed(1, 31);
     private static final Range<Integer> MONTH_RANGE = Range.closed(1, 12);
     private static final Range<Integer> DAY_OF_WEEK_RANGE = Range.closed(1, 7);
-    private static final Range<Integer> YEAR_RANGE = Range.closed(1970, 2099);
+    static final Range<Integer> YEAR_RANGE = Range.closed(1970, 9999);
+    private static final Pattern EVERY_PATTERN = Pattern.compile("(?i)@every\\s+((?:\\d+[dhms])+)");
+    private static final Pattern DURATION_UNIT_PATTERN = Pattern.compile("(?i)(\\d+)([dhms])");
+    private static final byte FORMAT_VERSION = 2;
+    private static final int DERIVED = 0x80;
+    private static final int COMMON_TIME_SEARCH_YEARS = 4;
 
     public CronExpression(String cronExp) {
+        this(cronExp, "", CronDialect.QUARTZ);
+    }
+
+    public CronExpression(String cronExp, CronDialect dialect) {
+        this(cronExp, "", dialect);
+    }
+
+    /**
+     * Creates an expression whose {@code H} fields are resolved from {@code hashKey}, typically the job ID, so that
+     * jobs sharing the same expression are spread across the field's range instead of firing at the same instant.
+     */
+    public CronExpression(String cronExp, String hashKey) {
+        this(cronExp, hashKey, CronDialect.QUARTZ);
+    }
+
+    public CronExpression(String cronExp, String hashKey, CronDialect dialect) {
+        if (hashKey == null || dialect == null) {
+            throw new NullPointerException();
+        }
+
+        this.cronExp = cronExp;
+        this.hashKey = hashKey;
+        this.dialect = dialect;
+    }
+
+    /**
+     * Creates an expression derived from others, whose description only names them, so it is told apart from the
+     * other derived expressions by its compiled form.
+     */
+    private CronExpression(String cronExp, CompiledExpression compiled) {
         this.cronExp = cronExp;
+        this.dialect = CronDialect.QUARTZ;
+        this.compiled = compiled;
+    }
 
-        secondPasers = new ArrayList<AbstractParser>();
+    private boolean isDerived() {
+        return hashKey == null;
+    }
+
+    private void validate(String[] exp) throws ParseException {
+        if (exp.length != 7) {
+            throw new ParseException("Unexpected end of expression.", -1);
+        } else if ("?".equals(exp[DurationField.DAY_OF_MONTH.index]) && "?".equals(exp[DurationField.DAY_OF_WEEK.index])) {
+            throw new ParseException("'?' can only be specfied for day-of-month or day-of-week.", -1);
+        } else if (!dialect.allowsBothDays() && !"?".equals(exp[DurationField.DAY_OF_MONTH.index])
+                && !"?".equals(exp[DurationField.DAY_OF_WEEK.index])) {
+            throw new ParseException("Support for specifying both a day-of-week and a day-of-month parameter is not implemented.", -1);
+        } else if ("2".equals(exp[DurationField.MONTH.index]) && CharMatcher.DIGIT.matchesAllOf(exp[DurationField.DAY_OF_MONTH.index])) {
+            int dayOfMonth = Integer.parseInt(exp[DurationField.DAY_OF_MONTH.index]);
+            if (dayOfMonth > 29) {
+                throw new ParseException("When month is 2, day-of-month should be in range [1, 29].", -1);
+            }
+        }
+    }
+
+    private List<Integer> parse(List<AbstractParser> pasers, String partCronExp, DateTime dateTime, DurationField type) throws ParseException {
+        Set<Integer> result = new HashSet<Integer>();
+        for (String str : Splitter.on(",").omitEmptyStrings().split(partCronExp)) {
+            boolean isMatch = false;
+            for (AbstractParser paser : pasers) {
+                if (paser.matches(str)) {
+                    Set<Integer> value = paser.parse(dateTime);
+                    if (value != null) {
+                        result.addAll(value);
+                    }
+                    isMatch = true;
+                    break;
+                }
+            }
+
+            if (!isMatch) {
+                throw new ParseException(String.format("Invalid value of %s: %s.", type.name, str), -1);
+            }
+        }
+
+        return Ordering.natural().sortedCopy(result);
+    }
+
+    private long parseDayMask(List<AbstractParser> dayOfMonthPasers, List<AbstractParser> dayOfWeekPasers, String[] fixedCronExp, boolean unionOfDays,
+            DateTime dateTime) throws ParseException {
+        String dayOfMonthExp = fixedCronExp[DurationField.DAY_OF_MONTH.index];
+        String dayOfWeekExp = fixedCronExp[DurationField.DAY_OF_WEEK.index];
+        long dayMask;
+        if ("?".equals(dayOfMonthExp)) {
+            dayMask = CompiledExpression.toMask(parse(dayOfWeekPasers, dayOfWeekExp, dateTime, DurationField.DAY_OF_WEEK));
+        } else if ("?".equals(dayOfWeekExp)) {
+            dayMask = CompiledExpression.toMask(parse(dayOfMonthPasers, dayOfMonthExp, dateTime, DurationField.DAY_OF_MONTH));
+        } else {
+            long dayOfMonthMask = CompiledExpression.toMask(parse(dayOfMonthPasers, dayOfMonthExp, dateTime, DurationField.DAY_OF_MONTH));
+            long dayOfWeekMask = CompiledExpression.toMask(parse(dayOfWeekPasers, dayOfWeekExp, dateTime, DurationField.DAY_OF_WEEK));
+            dayMask = unionOfDays ? dayOfMonthMask | dayOfWeekMask : dayOfMonthMask & dayOfWeekMask;
+        }
+
+        int lengthOfMonth = dateTime.dayOfMonth().getMaximumValue();
+        return dayMask & (((1L << lengthOfMonth) - 1) << 1);
+    }
+
+    private long parseEvery(String exp) throws ParseException {
+        Matcher m = EVERY_PATTERN.matcher(exp);
+        if (!m.matches()) {
+            throw new ParseException(String.format("Invalid duration of @every: %s.", exp), -1);
+        }
+
+        long period = 0;
+        Matcher unit = DURATION_UNIT_PATTERN.matcher(m.group(1));
+        try {
+            while (unit.find()) {
+                long value = Long.parseLong(unit.group(1));
+                switch (Character.toLowerCase(unit.group(2).charAt(0))) {
+                case 'd':
+                    value = LongMath.checkedMultiply(value, TimeUnit.DAYS.toMillis(1));
+                    break;
+                case 'h':
+                    value = LongMath.checkedMultiply(value, TimeUnit.HOURS.toMillis(1));
+                    break;
+                case 'm':
+                    value = LongMath.checkedMultiply(value, TimeUnit.MINUTES.toMillis(1));
+                    break;
+                default:
+                    value = LongMath.checkedMultiply(value, TimeUnit.SECONDS.toMillis(1));
+                }
+                period = LongMath.checkedAdd(period, value);
+            }
+        } catch (NumberFormatException e) {
+            throw new ParseException(String.format("Invalid duration of @every: %s, too long.", exp), -1);
+        } catch (ArithmeticException e) {
+            throw new ParseException(String.format("Invalid duration of @every: %s, too long.", exp), -1);
+        }
+
+        if (period <= 0) {
+            throw new ParseException(String.format("Invalid duration of @every: %s, should be > 0.", exp), -1);
+        }
+        return period;
+    }
+
+    CompiledExpression compile() throws ParseException {
+        CompiledExpression result = compiled;
+        if (result == null) {
+            synchronized (this) {
+                result = compiled;
+                if (result == null && cronExp.trim().toLowerCase().startsWith("@every")) {
+                    result = CompiledExpression.every(parseEvery(cronExp.trim()));
+                    compiled = result;
+                } else if (result == null) {
+                    result = compileFields();
+                    compiled = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private CompiledExpression compileFields() throws ParseException {
+        String[] fixedCronExp = dialect.normalize(cronExp);
+        validate(fixedCronExp);
+
+        List<AbstractParser> secondPasers = new ArrayList<AbstractParser>();
         secondPasers.add(new PoundSignParser(SECOND_RANGE, DurationField.SECOND));
         secondPasers.add(new RangeParser(SECOND_RANGE, DurationField.SECOND));
         secondPasers.add(new StepParser(SECOND_RANGE, DurationField.SECOND));
+        secondPasers.add(new HashParser(SECOND_RANGE, DurationField.SECOND, hashKey));
         secondPasers.add(new SingleParser(SECOND_RANGE, DurationField.SECOND));
 
-        minutePasers = new ArrayList<AbstractParser>();
+        List<AbstractParser> minutePasers = new ArrayList<AbstractParser>();
         minutePasers.add(new PoundSignParser(MINUTE_RANGE, DurationField.MINUTE));
         minutePasers.add(new RangeParser(MINUTE_RANGE, DurationField.MINUTE));
         minutePasers.add(new StepParser(MINUTE_RANGE, DurationField.MINUTE));
+        minutePasers.add(new HashParser(MINUTE_RANGE, DurationField.MINUTE, hashKey));
         minutePasers.add(new SingleParser(MINUTE_RANGE, DurationField.MINUTE));
 
-        hourPasers = new ArrayList<AbstractParser>();
+        List<AbstractParser> hourPasers = new ArrayList<AbstractParser>();
         hourPasers.add(new PoundSignParser(HOUR_RANGE, DurationField.HOUR));
         hourPasers.add(new RangeParser(HOUR_RANGE, DurationField.HOUR));
         hourPasers.add(new StepParser(HOUR_RANGE, DurationField.HOUR));
+        hourPasers.add(new HashParser(HOUR_RANGE, DurationField.HOUR, hashKey));
         hourPasers.add(new SingleParser(HOUR_RANGE, DurationField.HOUR));
 
-        dayOfMonthPasers = new ArrayList<AbstractParser>();
+        List<AbstractParser> dayOfMonthPasers = new ArrayList<AbstractParser>();
         dayOfMonthPasers.add(new PoundSignParser(DAY_OF_MONTH_RANGE, DurationField.DAY_OF_MONTH));
         dayOfMonthPasers.add(new RangeParser(DAY_OF_MONTH_RANGE, DurationField.DAY_OF_MONTH));
         dayOfMonthPasers.add(new StepParser(DAY_OF_MONTH_RANGE, DurationField.DAY_OF_MONTH));
+        dayOfMonthPasers.add(new HashParser(DAY_OF_MONTH_RANGE, DurationField.DAY_OF_MONTH, hashKey));
         dayOfMonthPasers.add(new LastDayOfMonthParser(DAY_OF_MONTH_RANGE, DurationField.DAY_OF_MONTH));
         dayOfMonthPasers.add(new NearestWeekdayOfMonthParser(DAY_OF_MONTH_RANGE, DurationField.DAY_OF_MONTH));
         dayOfMonthPasers.add(new SingleParser(DAY_OF_MONTH_RANGE, DurationField.DAY_OF_MONTH));
 
-        monthPasers = new ArrayList<AbstractParser>();
+        List<AbstractParser> monthPasers = new ArrayList<AbstractParser>();
         monthPasers.add(new PoundSignParser(MONTH_RANGE, DurationField.MONTH));
         monthPasers.add(new RangeParser(MONTH_RANGE, DurationField.MONTH));
         monthPasers.add(new StepParser(MONTH_RANGE, DurationField.MONTH));
+        monthPasers.add(new HashParser(MONTH_RANGE, DurationField.MONTH, hashKey));
         monthPasers.add(new SingleParser(MONTH_RANGE, DurationField.MONTH));
         monthPasers.add(new MonthAbbreviationParser(MONTH_RANGE, DurationField.MONTH));
 
-        dayOfWeekPasers = new ArrayList<AbstractParser>();
+        List<AbstractParser> dayOfWeekPasers = new ArrayList<AbstractParser>();
         dayOfWeekPasers.add(new PoundSignParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK));
         dayOfWeekPasers.add(new RangeParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK));
         dayOfWeekPasers.add(new StepParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK));
+        dayOfWeekPasers.add(new HashParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK, hashKey));
         dayOfWeekPasers.add(new LastDayOfMonthParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK));
         dayOfWeekPasers.add(new AsteriskParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK));
         dayOfWeekPasers.add(new SingleParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK));
         dayOfWeekPasers.add(new WeekAbbreviationParser(DAY_OF_WEEK_RANGE, DurationField.DAY_OF_WEEK));
 
-        yearPasers = new ArrayList<AbstractParser>();
-        yearPasers.add(new PoundSignParser(YEAR_RANGE, DurationField.YEAR));
-        yearPasers.add(new RangeParser(YEAR_RANGE, DurationField.YEAR));
-        yearPasers.add(new StepParser(YEAR_RANGE, DurationField.YEAR));
-        yearPasers.add(new SingleParser(YEAR_RANGE, DurationField.YEAR));
+        DateTime dateTime = CompiledExpression.sample(0);
+        long seconds = CompiledExpression.toMask(parse(secondPasers, fixedCronExp[DurationField.SECOND.index], dateTime, DurationField.SECOND));
+        long minutes = CompiledExpression.toMask(parse(minutePasers, fixedCronExp[DurationField.MINUTE.index], dateTime, DurationField.MINUTE));
+        long hours = CompiledExpression.toMask(parse(hourPasers, fixedCronExp[DurationField.HOUR.index], dateTime, DurationField.HOUR));
+        long months = CompiledExpression.toMask(parse(monthPasers, fixedCronExp[DurationField.MONTH.index], dateTime, DurationField.MONTH));
+        YearSet years = YearSet.parse(fixedCronExp[DurationField.YEAR.index], YEAR_RANGE);
+
+        boolean unionOfDays = dialect.unionOfDays(cronExp);
+        long[] days = new long[CompiledExpression.MONTH_SHAPES];
+        for (int shape = 0; shape < CompiledExpression.MONTH_SHAPES; shape++) {
+            days[shape] = parseDayMask(dayOfMonthPasers, dayOfWeekPasers, fixedCronExp, unionOfDays, CompiledExpression.sample(shape));
+        }
+
+        return CompiledExpression.of(seconds, minutes, hours, months, years, days);
     }
 
-    private void validate(String[] exp) throws ParseException {
-        if (exp.length != 7) {
-            throw new ParseException("Unexpected end of expression.", -1);
-        } else if ("?".equals(exp[DurationField.DAY_OF_MONTH.index]) && "?".equals(exp[DurationField.DAY_OF_WEEK.index])) {
-            throw new ParseException("'?' can only be specfied for day-of-month or day-of-week.", -1);
-        } else if (!"?".equals(exp[DurationField.DAY_OF_MONTH.index]) && !"?".equals(exp[DurationField.DAY_OF_WEEK.index])) {
-            throw new ParseException("Support for specifying both a day-of-week and a day-of-month parameter is not implemented.", -1);
-        } else if ("2".equals(exp[DurationField.MONTH.index]) && CharMatcher.DIGIT.matchesAllOf(exp[DurationField.DAY_OF_MONTH.index])) {
-            int dayOfMonth = Integer.parseInt(exp[DurationField.DAY_OF_MONTH.index]);
-            if (dayOfMonth > 29) {
-                throw new ParseException("When month is 2, day-of-month should be in range [1, 29].", -1);
+    public DateTime getTimeAfter(DateTime dateTime) throws ParseException {
+        long millis = compile().timeAfter(dateTime.getMillis(), dateTime.getChronology());
+        return millis == CompiledExpression.NONE ? null : new DateTime(millis, dateTime.getChronology());
+    }
+
+    public DateTime getTimeBefore(DateTime dateTime) throws ParseException {
+        long millis = compile().timeBefore(dateTime.getMillis(), dateTime.getChronology());
+        return millis == CompiledExpression.NONE ? null : new DateTime(millis, dateTime.getChronology());
+    }
+
+    /**
+     * Returns the first fire time strictly after {@code dateTime} in each of the given time zones, or null for a zone
+     * in which the expression no longer fires. The fire time only depends on the offsets of a zone between
+     * {@code dateTime} and the fire time, so it is computed once for each group of zones whose offsets agree over
+     * that window, such as Europe/Paris and Europe/Berlin, and the cost follows the number of distinct groups
+     * rather than the number of zones.
+     */
+    public Map<DateTimeZone, DateTime> getTimeAfter(DateTime dateTime, Iterable<DateTimeZone> zones) throws ParseException {
+        CompiledExpression result = compile();
+        long after = dateTime.getMillis();
+        Map<DateTimeZone, DateTime> times = new LinkedHashMap<DateTimeZone, DateTime>();
+        List<DateTimeZone> pending = Lists.newArrayList(zones);
+        while (!pending.isEmpty()) {
+            DateTimeZone zone = pending.get(0);
+            long millis = result.timeAfter(after, dateTime.getChronology().withZone(zone));
+            List<DateTimeZone> rest = new ArrayList<DateTimeZone>();
+            for (DateTimeZone other : pending) {
+                if (other.equals(zone) || (millis != CompiledExpression.NONE && sameOffsets(zone, other, after, millis))) {
+                    times.put(other, millis == CompiledExpression.NONE ? null : new DateTime(millis, dateTime.getChronology().withZone(other)));
+                } else {
+                    rest.add(other);
+                }
             }
+            pending = rest;
         }
+        return times;
     }
 
-    private String[] appendYearField(String[] exp) {
-        if (exp.length == 6) {
-            String[] newExp = new String[7];
-            System.arraycopy(exp, 0, newExp, 0, exp.length);
-            newExp[DurationField.YEAR.index] = "*";
-            return newExp;
+    /**
+     * Returns whether both zones have the same offsets from a day before {@code from}, as the search also resolves
+     * local times falling just before it around daylight saving overlaps, to {@code to}.
+     */
+    private static boolean sameOffsets(DateTimeZone first, DateTimeZone second, long from, long to) {
+        long millis = from - TimeUnit.DAYS.toMillis(1);
+        if (first.getOffset(millis) != second.getOffset(millis)) {
+            return false;
+        }
+
+        while (true) {
+            long firstTransition = first.nextTransition(millis);
+            long secondTransition = second.nextTransition(millis);
+            // a zone without further transitions returns the instant itself
+            firstTransition = firstTransition > millis ? firstTransition : Long.MAX_VALUE;
+            secondTransition = secondTransition > millis ? secondTransition : Long.MAX_VALUE;
+            if (Math.min(firstTransition, secondTransition) > to) {
+                return true;
+            }
+            if (firstTransition != secondTransition || first.getOffset(firstTransition) != second.getOffset(firstTransition)) {
+                return false;
+            }
+            millis = firstTransition;
         }
+    }
 
-        return exp;
+    /**
+     * Returns whether the expression fires exactly at {@code dateTime}, in its chronology and time zone.
+     */
+    public boolean matches(DateTime dateTime) throws ParseException {
+        return compile().matches(dateTime.getMillis(), dateTime.getChronology());
     }
 
-    private int searchNotLessThanIndex(List<Integer> sortedList, int value) {
-        for (int i = 0, len = sortedList.size(); i < len; i++) {
-            if (sortedList.get(i) >= value) {
-                return i;
-            }
+    /**
+     * Returns whether the expression fires exactly at {@code epochMillis} in the given time zone.
+     */
+    public boolean matches(long epochMillis, DateTimeZone zone) throws ParseException {
+        return compile().matches(epochMillis, ISOChronology.getInstance(zone));
+    }
+
+    /**
+     * Returns the number of fire times from {@code start}, inclusive, to {@code end}, exclusive, in the chronology
+     * and time zone of {@code start}. The count is computed from the compiled fields without enumerating the fire
+     * times.
+     */
+    public long countBetween(DateTime start, DateTime end) throws ParseException {
+        if (end.isBefore(start)) {
+            throw new IllegalArgumentException("end should not be before start, but given " + start + " and " + end);
         }
 
-        return 0;
+        return compile().count(start.getMillis(), end.getMillis(), start.getChronology());
+    }
+
+    /**
+     * Returns the fire times strictly after {@code dateTime} in ascending order. They are computed lazily, one per
+     * call to {@link Iterator#next()}.
+     */
+    public Iterator<DateTime> iterateAfter(DateTime dateTime) throws ParseException {
+        return new FireTimeIterator(compile(), dateTime, true);
+    }
+
+    /**
+     * Returns the fire times strictly before {@code dateTime} in descending order. They are computed lazily, one per
+     * call to {@link Iterator#next()}.
+     */
+    public Iterator<DateTime> iterateBefore(DateTime dateTime) throws ParseException {
+        return new FireTimeIterator(compile(), dateTime, false);
     }
 
-    private int searchNotGreaterThanIndex(List<Integer> sortedList, int value) {
-        for (int i = sortedList.size() - 1; i >= 0; i--) {
-            if (sortedList.get(i) <= value) {
-                return i;
+    /**
+     * Returns the first instant strictly after {@code dateTime} at which both this expression and {@code other} fire,
+     * or null. When their intersection compiles exactly it is searched directly, otherwise the two expressions leap
+     * over each other's fire times until one of them fires at the other's, for at most
+     * {@value #COMMON_TIME_SEARCH_YEARS} years, a leap year cycle, after which null is returned.
+     */
+    public DateTime getCommonTimeAfter(DateTime dateTime, CronExpression other) throws ParseException {
+        Chronology chronology = dateTime.getChronology();
+        CompiledExpression first = compile();
+        CompiledExpression second = other.compile();
+        CompiledExpression intersection = first.intersect(second);
+        long millis;
+        if (intersection != null) {
+            millis = intersection.timeAfter(dateTime.getMillis(), chronology);
+        } else {
+            long limit = chronology.years().add(dateTime.getMillis(), COMMON_TIME_SEARCH_YEARS);
+            millis = first.timeAfter(dateTime.getMillis(), chronology);
+            while (millis != CompiledExpression.NONE && !second.matches(millis, chronology)) {
+                millis = second.timeAfter(millis, chronology);
+                if (millis != CompiledExpression.NONE && !first.matches(millis, chronology)) {
+                    millis = first.timeAfter(millis, chronology);
+                }
+                if (millis > limit) {
+                    // schedules which never fire together would otherwise be walked up to year 9999
+                    millis = CompiledExpression.NONE;
+                }
             }
         }
 
-        return sortedList.size() - 1;
+        return millis == CompiledExpression.NONE ? null : new DateTime(millis, chronology);
     }
 
-    private List<Integer> parse(List<AbstractParser> pasers, String partCronExp, DateTime dateTime, DurationField type) throws ParseException {
-        Set<Integer> result = new HashSet<Integer>();
-        for (String str : Splitter.on(",").omitEmptyStrings().split(partCronExp)) {
-            boolean isMatch = false;
-            for (AbstractParser paser : pasers) {
-                if (paser.matches(str)) {
-                    Set<Integer> value = paser.parse(dateTime);
-                    if (value != null) {
-                        result.addAll(value);
-                    }
-                    isMatch = true;
-                    break;
-                }
+    /**
+     * Returns an expression firing when all the given expressions fire. It is compiled from their fields, so its
+     * fire times are searched as fast as those of a single expression.
+     *
+     * @throws IllegalArgumentException if the intersection cannot be compiled exactly, which is the case when
+     *             {@code @every} is combined with a field-based expression
+     */
+    public static CronExpression intersection(CronExpression first, CronExpression... others) throws ParseException {
+        CompiledExpression result = first.compile();
+        for (CronExpression other : others) {
+            result = result.intersect(other.compile());
+            if (result == null) {
+                throw new IllegalArgumentException("The intersection of " + first + " and " + Arrays.toString(others) + " cannot be compiled exactly.");
             }
+        }
 
-            if (!isMatch) {
-                throw new ParseException(String.format("Invalid value of %s: %s.", type.name, str), -1);
+        return new CronExpression(combine(" & ", first, others), result);
+    }
+
+    /**
+     * Returns an expression firing when any of the given expressions fires. It is compiled from their fields, which
+     * is only exact when they differ in at most one field, as in {@code 0 0 9 * * ?} and {@code 0 0 17 * * ?};
+     * {@link #merge(DateTime, Iterable)} iterates over the fire times of any expressions.
+     *
+     * @throws IllegalArgumentException if the union cannot be compiled exactly
+     */
+    public static CronExpression union(CronExpression first, CronExpression... others) throws ParseException {
+        CompiledExpression result = first.compile();
+        for (CronExpression other : others) {
+            result = result.union(other.compile());
+            if (result == null) {
+                throw new IllegalArgumentException("The union of " + first + " and " + Arrays.toString(others) + " cannot be compiled exactly.");
             }
         }
 
-        return Ordering.natural().sortedCopy(result);
+        return new CronExpression(combine(" | ", first, others), result);
     }
 
-    private List<Integer> parseDayValueList(String[] fixedCronExp, DateTime dateTime) throws ParseException {
-        List<Integer> dayValues = null;
-        if ("?".equals(fixedCronExp[DurationField.DAY_OF_MONTH.index])) {
-            dayValues = parse(dayOfWeekPasers, fixedCronExp[DurationField.DAY_OF_WEEK.index], dateTime, DurationField.DAY_OF_WEEK);
-        } else {
-            dayValues = parse(dayOfMonthPasers, fixedCronExp[DurationField.DAY_OF_MONTH.index], dateTime, DurationField.DAY_OF_MONTH);
+    /**
+     * Returns an expression firing when this expression fires, except on the days of {@code calendar}. The excluded
+     * days are cleared from the day masks of each month, so a freeze window of weeks is skipped in one step of the
+     * search instead of one fire time at a time.
+     *
+     * @throws IllegalArgumentException if this is an {@code @every} expression, which does not fire on days
+     */
+    public CronExpression excluding(ExclusionCalendar calendar) throws ParseException {
+        if (calendar == null) {
+            throw new NullPointerException();
         }
+        return new CronExpression(cronExp + " excluding " + calendar.getName(), compile().excluding(calendar));
+    }
 
-        return dayValues;
+    private static String combine(String operator, CronExpression first, CronExpression... others) {
+        StringBuilder sb = new StringBuilder("(").append(first).append(')');
+        for (CronExpression other : others) {
+            sb.append(operator).append('(').append(other).append(')');
+        }
+        return sb.toString();
     }
 
-    public DateTime getTimeAfter(DateTime dateTime) throws ParseException {
-        String[] fixedCronExp = appendYearField(cronExp.split("\\s+"));
-        validate(fixedCronExp);
+    /**
+     * Returns the fire times of all the given expressions strictly after {@code dateTime} in ascending order, an
+     * instant at which several of them fire being returned once. The expressions are iterated lazily and merged
+     * through a heap ordered by their next fire time, so each step costs O(log k) for k expressions.
+     */
+    public static Iterator<DateTime> merge(DateTime dateTime, Iterable<CronExpression> expressions) throws ParseException {
+        List<Iterator<DateTime>> iterators = new ArrayList<Iterator<DateTime>>();
+        for (CronExpression expression : expressions) {
+            iterators.add(expression.iterateAfter(dateTime));
+        }
 
-        MutableDateTime mdt = dateTime.toMutableDateTime();
-        mdt.setMillisOfSecond(0);
-
-        List<Integer> secondValues = parse(secondPasers, fixedCronExp[DurationField.SECOND.index], dateTime, DurationField.SECOND);
-        List<Integer> minuteValues = parse(minutePasers, fixedCronExp[DurationField.MINUTE.index], dateTime, DurationField.MINUTE);
-        List<Integer> hourValues = parse(hourPasers, fixedCronExp[DurationField.HOUR.index], dateTime, DurationField.HOUR);
-        List<Integer> monthValues = parse(monthPasers, fixedCronExp[DurationField.MONTH.index], dateTime, DurationField.MONTH);
-        List<Integer> yearValues = parse(yearPasers, fixedCronExp[DurationField.YEAR.index], dateTime, DurationField.YEAR);
-
-        int yearStartIndex = searchNotLessThanIndex(yearValues, mdt.getYear());
-        for (int yearIndex = yearStartIndex, yearLen = yearValues.size(); yearIndex < yearLen; yearIndex++) {
-            int year = yearValues.get(yearIndex);
-            mdt.setYear(year);
-            int monthStartIndex = (year == dateTime.getYear()) ? searchNotLessThanIndex(monthValues, dateTime.getMonthOfYear()) : 0;
-
-            for (int monthIndex = monthStartIndex, monthLen = monthValues.size(); monthIndex < monthLen; monthIndex++) {
-                int month = monthValues.get(monthIndex);
-                mdt.setMonthOfYear(month);
-                List<Integer> dayValues = parseDayValueList(fixedCronExp, mdt.toDateTime());
-                int dayStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear())
-                        ? searchNotLessThanIndex(dayValues, dateTime.getDayOfMonth()) : 0;
-
-                for (int dayIndex = dayStartIndex, dayLen = dayValues.size(); dayIndex < dayLen; dayIndex++) {
-                    int day = dayValues.get(dayIndex);
-                    int maxDayOfMonth = mdt.toDateTime().dayOfMonth().withMaximumValue().toLocalDate().getDayOfMonth();
-                    if (day > maxDayOfMonth) {
-                        break;
-                    }
-                    mdt.setDayOfMonth(day);
-                    int hourStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear() && day == dateTime.getDayOfMonth())
-                            ? searchNotLessThanIndex(hourValues, dateTime.getHourOfDay()) : 0;
-
-                    for (int hourIndex = hourStartIndex, hourLen = hourValues.size(); hourIndex < hourLen; hourIndex++) {
-                        int hour = hourValues.get(hourIndex);
-                        mdt.setHourOfDay(hour);
-                        int minuteStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear() && day == dateTime.getDayOfMonth()
-                                && hour == dateTime.getHourOfDay()) ? searchNotLessThanIndex(minuteValues, dateTime.getMinuteOfHour()) : 0;
-
-                        for (int minuteIndex = minuteStartIndex, minuteLen = minuteValues.size(); minuteIndex < minuteLen; minuteIndex++) {
-                            int minute = minuteValues.get(minuteIndex);
-                            int secondStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear()
-                                    && day == dateTime.getDayOfMonth() && hour == dateTime.getHourOfDay() && minute == dateTime.getMinuteOfHour())
-                                            ? searchNotLessThanIndex(secondValues, dateTime.getSecondOfMinute()) : 0;
-                            mdt.setMinuteOfHour(minute);
-                            for (int secondIndex = secondStartIndex, secondLen = secondValues.size(); secondIndex < secondLen; secondIndex++) {
-                                int second = secondValues.get(secondIndex);
-                                mdt.setSecondOfMinute(second);
-                                if (mdt.isAfter(dateTime)) {
-                                    return mdt.toDateTime();
-                                }
-                            }
-                        }
+        final Iterator<DateTime> merged = Iterators.mergeSorted(iterators, Ordering.natural());
+        return new AbstractIterator<DateTime>() {
+
+            private DateTime last;
+
+            @Override
+            protected DateTime computeNext() {
+                while (merged.hasNext()) {
+                    DateTime next = merged.next();
+                    if (last == null || next.getMillis() != last.getMillis()) {
+                        last = next;
+                        return next;
                     }
                 }
+                return endOfData();
             }
+        };
+    }
+
+    /**
+     * Returns the binary encoding of the expression: a format version, the dialect with its high bit set for a
+     * derived expression, the source and hash key, then the compiled fields as bitmasks. {@link #fromByteBuffer(ByteBuffer)} loads it back without parsing.
+     */
+    public byte[] toByteArray() throws ParseException {
+        CompiledExpression result = compile();
+        byte[] source = cronExp.getBytes(Charsets.UTF_8);
+        byte[] key = isDerived() ? new byte[0] : hashKey.getBytes(Charsets.UTF_8);
+        if (source.length > 0xFFFF || key.length > 0xFFFF) {
+            throw new IllegalArgumentException("The expression or its hash key is longer than 65535 bytes.");
         }
-        return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + source.length + 2 + key.length + result.encodedLength());
+        buffer.put(FORMAT_VERSION);
+        buffer.put((byte) (dialect.ordinal() | (isDerived() ? DERIVED : 0)));
+        buffer.putShort((short) source.length).put(source);
+        buffer.putShort((short) key.length).put(key);
+        result.writeTo(buffer);
+        return buffer.array();
     }
 
-    public DateTime getTimeBefore(DateTime dateTime) throws ParseException {
-        String[] fixedCronExp = appendYearField(cronExp.split("\\s+"));
-        validate(fixedCronExp);
+    /**
+     * Reads an expression written by {@link #toByteArray()} from the current position of {@code buffer}, which is
+     * advanced past it. The compiled fields are read straight from the buffer, so the expression is not parsed
+     * again. Encodings of earlier format versions are still read.
+     *
+     * @throws IllegalArgumentException if the format version is unknown or the encoding is invalid or truncated
+     */
+    public static CronExpression fromByteBuffer(ByteBuffer buffer) {
+        try {
+            return readFrom(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated encoding of a cron expression.", e);
+        }
+    }
 
-        MutableDateTime mdt = dateTime.toMutableDateTime();
-        mdt.setMillisOfSecond(0);
-
-        List<Integer> secondValues = parse(secondPasers, fixedCronExp[DurationField.SECOND.index], dateTime, DurationField.SECOND);
-        List<Integer> minuteValues = parse(minutePasers, fixedCronExp[DurationField.MINUTE.index], dateTime, DurationField.MINUTE);
-        List<Integer> hourValues = parse(hourPasers, fixedCronExp[DurationField.HOUR.index], dateTime, DurationField.HOUR);
-        List<Integer> monthValues = parse(monthPasers, fixedCronExp[DurationField.MONTH.index], dateTime, DurationField.MONTH);
-        List<Integer> yearValues = parse(yearPasers, fixedCronExp[DurationField.YEAR.index], dateTime, DurationField.YEAR);
-
-        int yearStartIndex = searchNotGreaterThanIndex(yearValues, mdt.getYear());
-        for (int yearIndex = yearStartIndex; yearIndex >= 0; yearIndex--) {
-            int year = yearValues.get(yearIndex);
-            mdt.setYear(year);
-            int monthStartIndex = (year == dateTime.getYear()) ? searchNotGreaterThanIndex(monthValues, dateTime.getMonthOfYear())
-                    : monthValues.size() - 1;
-
-            for (int monthIndex = monthStartIndex; monthIndex >= 0; monthIndex--) {
-                int month = monthValues.get(monthIndex);
-                mdt.setMonthOfYear(month);
-                List<Integer> dayValues = parseDayValueList(fixedCronExp, mdt.toDateTime());
-                int dayStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear())
-                        ? searchNotGreaterThanIndex(dayValues, dateTime.getDayOfMonth()) : dayValues.size() - 1;
-
-                for (int dayIndex = dayStartIndex; dayIndex >= 0; dayIndex--) {
-                    int day = dayValues.get(dayIndex);
-                    int maxDayOfMonth = mdt.toDateTime().dayOfMonth().withMaximumValue().toLocalDate().getDayOfMonth();
-                    if (day > maxDayOfMonth) {
-                        break;
-                    }
-                    mdt.setDayOfMonth(day);
-                    int hourStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear() && day == dateTime.getDayOfMonth())
-                            ? searchNotGreaterThanIndex(hourValues, dateTime.getHourOfDay()) : hourValues.size() - 1;
-
-                    for (int hourIndex = hourStartIndex; hourIndex >= 0; hourIndex--) {
-                        int hour = hourValues.get(hourIndex);
-                        mdt.setHourOfDay(hour);
-                        int minuteStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear() && day == dateTime.getDayOfMonth()
-                                && hour == dateTime.getHourOfDay()) ? searchNotGreaterThanIndex(minuteValues, dateTime.getMinuteOfHour())
-                                        : minuteValues.size() - 1;
-
-                        for (int minuteIndex = minuteStartIndex; minuteIndex >= 0; minuteIndex--) {
-                            int minute = minuteValues.get(minuteIndex);
-                            mdt.setMinuteOfHour(minute);
-                            int secondStartIndex = (year == dateTime.getYear() && month == dateTime.getMonthOfYear()
-                                    && day == dateTime.getDayOfMonth() && hour == dateTime.getHourOfDay() && minute == dateTime.getMinuteOfHour())
-                                            ? searchNotGreaterThanIndex(secondValues, dateTime.getSecondOfMinute()) : secondValues.size() - 1;
-
-                            for (int secondIndex = secondStartIndex; secondIndex >= 0; secondIndex--) {
-                                int second = secondValues.get(secondIndex);
-                                mdt.setSecondOfMinute(second);
-                                if (mdt.isBefore(dateTime)) {
-                                    return mdt.toDateTime();
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+    private static CronExpression readFrom(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported format version: " + version);
+        }
+        int flags = buffer.get() & 0xFF;
+        int dialect = flags & ~DERIVED;
+        if (dialect >= CronDialect.values().length) {
+            throw new IllegalArgumentException("Unknown dialect: " + dialect);
         }
 
-        return null;
+        String cronExp = readString(buffer);
+        String hashKey = readString(buffer);
+        if ((flags & DERIVED) != 0) {
+            return new CronExpression(cronExp, CompiledExpression.readFrom(buffer, version));
+        }
+        CronExpression expression = new CronExpression(cronExp, hashKey, CronDialect.values()[dialect]);
+        expression.compiled = CompiledExpression.readFrom(buffer, version);
+        return expression;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
     }
 
     public List<DateTime> getTimeAfter(DateTime dateTime, int n) throws ParseException {
@@ -305,22 +576,7 @@ public class CronExpression {
             throw new IllegalArgumentException("n should be > 0, but given " + n);
         }
 
-        List<DateTime> list = null;
-        MutableDateTime mdt = dateTime.toMutableDateTime();
-        for (int i = 0; i < n; i++) {
-            DateTime value = getTimeAfter(mdt.toDateTime());
-            if (value != null) {
-                if (list == null) {
-                    list = new ArrayList<DateTime>();
-                }
-                list.add(value);
-                mdt.setMillis(value.getMillis());
-            } else {
-                break;
-            }
-        }
-
-        return list;
+        return take(iterateAfter(dateTime), n);
     }
 
     public List<DateTime> getTimeBefore(DateTime dateTime, int n) throws ParseException {
@@ -328,19 +584,16 @@ public class CronExpression {
             throw new IllegalArgumentException("n should be > 0, but given " + n);
         }
 
+        return take(iterateBefore(dateTime), n);
+    }
+
+    private List<DateTime> take(Iterator<DateTime> iterator, int n) {
         List<DateTime> list = null;
-        MutableDateTime mdt = dateTime.toMutableDateTime();
-        for (int i = 0; i < n; i++) {
-            DateTime value = getTimeBefore(mdt.toDateTime());
-            if (value != null) {
-                if (list == null) {
-                    list = new ArrayList<DateTime>();
-                }
-                list.add(value);
-                mdt.setMillis(value.getMillis());
-            } else {
-                break;
+        for (int i = 0; i < n && iterator.hasNext(); i++) {
+            if (list == null) {
+                list = new ArrayList<DateTime>();
             }
+            list.add(iterator.next());
         }
 
         return list;
@@ -361,6 +614,8 @@ public class CronExpression {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((cronExp == null) ? 0 : cronExp.hashCode());
+        result = prime * result + (isDerived() ? compiled.hashCode() : hashKey.hashCode());
+        result = prime * result + dialect.hashCode();
         return result;
     }
 
@@ -384,6 +639,14 @@ public class CronExpression {
         } else if (!cronExp.equals(other.cronExp)) {
             return false;
         }
+        if (isDerived() || other.isDerived()) {
+            // the description of a derived expression drops the hash keys and dialects of its operands, and only
+            // names its calendars
+            return isDerived() == other.isDerived() && compiled.equals(other.compiled);
+        }
+        if (!hashKey.equals(other.hashKey) || dialect != other.dialect) {
+            return false;
+        }
 
         return true;
     }
@@ -392,4 +655,25 @@ public class CronExpression {
     public String toString() {
         return cronExp;
     }
+
+    private static class FireTimeIterator extends AbstractIterator<DateTime> {
+
+        private final CompiledExpression compiled;
+        private final Chronology chronology;
+        private final boolean ascending;
+        private long millis;
+
+        FireTimeIterator(CompiledExpression compiled, DateTime dateTime, boolean ascending) {
+            this.compiled = compiled;
+            this.chronology = dateTime.getChronology();
+            this.ascending = ascending;
+            this.millis = dateTime.getMillis();
+        }
+
+        @Override
+        protected DateTime computeNext() {
+            millis = ascending ? compiled.timeAfter(millis, chronology) : compiled.timeBefore(millis, chronology);
+            return millis == CompiledExpression.NONE ? endOfData() : new DateTime(millis, chronology);
+        }
+    }
 }
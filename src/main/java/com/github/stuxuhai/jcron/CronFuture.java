@@ -0,0 +1,35 @@
+/*
+ * Create Date: 2026-10-19 16:58:12
+ */
+package com.github.stuxuhai.jcron;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * The handle of a job scheduled by {@link CronThreadPoolExecutor}. It never completes normally while the expression
+ * has fire times left; cancelling it stops the job for good, while pausing it only skips fire times until it is
+ * resumed.
+ */
+public interface CronFuture extends ScheduledFuture<Object> {
+
+    CronExpression getExpression();
+
+    /**
+     * Atomically replaces the expression of the job, whose next fire time is recomputed from now. Returns false if
+     * the job is done.
+     */
+    boolean reschedule(CronExpression expression);
+
+    /**
+     * Stops firing the job until {@link #resume()}, returns false if it is done or already paused.
+     */
+    boolean pause();
+
+    /**
+     * Fires the job again from its next fire time after now, the fire times missed while paused are skipped. Returns
+     * false if it is done or not paused.
+     */
+    boolean resume();
+
+    boolean isPaused();
+}
@@ -0,0 +1,123 @@
+/*
+ * Create Date: 2026-10-19 19:31:08
+ */
+package com.github.stuxuhai.jcron;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the runs of the jobs of a {@link CronThreadPoolExecutor}. The run time of an asynchronous job lasts
+ * until its future completes. The lateness of a run, from its fire time to its start on a worker, is kept per group
+ * of jobs.
+ */
+public class CronMetrics {
+
+    private final AtomicLong runCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final ConcurrentMap<String, Lateness> lateness = new ConcurrentHashMap<String, Lateness>();
+
+    /**
+     * Returns the number of completed runs, failed and timed out ones included.
+     */
+    public long getRunCount() {
+        return runCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Returns the number of fire times skipped because the previous run of the job was still pending or waiting for
+     * the cap on runs in flight, or because the task executor rejected the run.
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getAverageRunTime(TimeUnit unit) {
+        long count = runCount.get();
+        return count == 0 ? 0 : unit.convert(runNanos.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the groups whose runs have started so far, the jobs without a group belong to the empty group.
+     */
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(lateness.keySet());
+    }
+
+    public long getAverageLateness(String group, TimeUnit unit) {
+        Lateness value = lateness.get(group);
+        long count = value == null ? 0 : value.count.get();
+        return count == 0 ? 0 : unit.convert(value.totalMillis.get() / count, TimeUnit.MILLISECONDS);
+    }
+
+    public long getMaxLateness(String group, TimeUnit unit) {
+        Lateness value = lateness.get(group);
+        return value == null ? 0 : unit.convert(value.maxMillis.get(), TimeUnit.MILLISECONDS);
+    }
+
+    void recordLateness(String group, long millis) {
+        Lateness value = lateness.get(group);
+        if (value == null) {
+            Lateness created = new Lateness();
+            value = lateness.putIfAbsent(group, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+
+        millis = Math.max(millis, 0);
+        value.totalMillis.addAndGet(millis);
+        value.count.incrementAndGet();
+        long max = value.maxMillis.get();
+        while (millis > max && !value.maxMillis.compareAndSet(max, millis)) {
+            max = value.maxMillis.get();
+        }
+    }
+
+    void recordRun(long nanos) {
+        runNanos.addAndGet(nanos);
+        runCount.incrementAndGet();
+    }
+
+    void recordFailure(long nanos) {
+        failureCount.incrementAndGet();
+        recordRun(nanos);
+    }
+
+    void recordTimeout(long nanos) {
+        timeoutCount.incrementAndGet();
+        recordRun(nanos);
+    }
+
+    void recordSkipped() {
+        skippedCount.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "runs=" + getRunCount() + ", failures=" + getFailureCount() + ", skipped=" + getSkippedCount() + ", timeouts=" + getTimeoutCount()
+                + ", averageRunTime=" + getAverageRunTime(TimeUnit.MILLISECONDS) + "ms";
+    }
+
+    private static class Lateness {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+    }
+}
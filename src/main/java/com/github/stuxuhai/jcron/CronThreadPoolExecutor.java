@@ -4,70 +4,1029 @@
  */
 package com.github.stuxuhai.jcron;
 
+import java.math.RoundingMode;
 import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.joda.time.DateTime;
 
-import com.google.common.base.Throwables;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.math.LongMath;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+/**
+ * Jobs whose next fire times are the same instant share one bucket, which a single timer thread fires once and fans
+ * out to the workers in batches of {@link #BATCH_SIZE} jobs, so 5k jobs on {@code 0 0 * * * ?} cost one wakeup per
+ * hour instead of 5k delayed tasks.
+ *
+ * <p>
+ * Jobs scheduled with an ID are kept in a registry where they can be replaced, removed or rescheduled concurrently
+ * with the dispatch: the registry is a concurrent hash map, the buckets a concurrent skip list, and a job only locks
+ * itself and the bucket it moves to.
+ */
 public class CronThreadPoolExecutor extends ScheduledThreadPoolExecutor implements CronExecutorService {
 
+    static final int BATCH_SIZE = 32;
+    static final String DEFAULT_GROUP = "";
+
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<Long, Bucket>();
+    private final ConcurrentMap<String, CronJob> jobs = new ConcurrentHashMap<String, CronJob>();
+    private final Executor taskExecutor;
+    private final CronClock clock;
+    private final CronMetrics metrics = new CronMetrics();
+    private final ConcurrentMap<String, Integer> groupWeights = new ConcurrentHashMap<String, Integer>();
+    private final FairQueue fairQueue = new FairQueue();
+    private final Watchdog watchdog = new Watchdog(getThreadFactory());
+    private volatile int maxInFlight;
+    private volatile long leadTime;
+    private volatile int minPoolSize;
+    // 0 while the pool is not sized adaptively
+    private volatile int maxPoolSize;
+    private volatile Thread timer;
+    private volatile boolean stopped;
+
     public CronThreadPoolExecutor(int corePoolSize) {
         super(corePoolSize);
+        this.taskExecutor = this;
+        this.clock = CronClock.SYSTEM;
     }
 
     public CronThreadPoolExecutor(int corePoolSize, ThreadFactory threadFactory) {
         super(corePoolSize, threadFactory);
+        this.taskExecutor = this;
+        this.clock = CronClock.SYSTEM;
     }
 
     public CronThreadPoolExecutor(int corePoolSize, RejectedExecutionHandler handler) {
         super(corePoolSize, handler);
+        this.taskExecutor = this;
+        this.clock = CronClock.SYSTEM;
     }
 
     public CronThreadPoolExecutor(int corePoolSize, ThreadFactory threadFactory, RejectedExecutionHandler handler) {
         super(corePoolSize, threadFactory, handler);
+        this.taskExecutor = this;
+        this.clock = CronClock.SYSTEM;
+    }
+
+    /**
+     * Creates an executor whose cron tasks run on {@code taskExecutor}, for instance a {@code ForkJoinPool} whose
+     * workers steal from each other's queues, so the task fan-out never contends on the delay queue of this executor.
+     * {@code taskExecutor} is not shut down with this executor.
+     */
+    public CronThreadPoolExecutor(int corePoolSize, Executor taskExecutor) {
+        super(corePoolSize);
+        this.taskExecutor = Preconditions.checkNotNull(taskExecutor);
+        this.clock = CronClock.SYSTEM;
     }
 
-    public ScheduledFuture<?> schedule(final Runnable task, final CronExpression expression) {
-        if (task == null) {
+    public CronThreadPoolExecutor(int corePoolSize, ThreadFactory threadFactory, Executor taskExecutor) {
+        super(corePoolSize, threadFactory);
+        this.taskExecutor = Preconditions.checkNotNull(taskExecutor);
+        this.clock = CronClock.SYSTEM;
+    }
+
+    /**
+     * Creates an executor whose cron jobs follow {@code clock}, for instance a {@link SimulatedClock} to replay a
+     * schedule in virtual time.
+     */
+    public CronThreadPoolExecutor(int corePoolSize, Executor taskExecutor, CronClock clock) {
+        super(corePoolSize);
+        this.taskExecutor = Preconditions.checkNotNull(taskExecutor);
+        this.clock = Preconditions.checkNotNull(clock);
+    }
+
+    /**
+     * Runs {@code task} at every fire time of {@code expression}. The returned future never completes normally while
+     * the expression has fire times left, cancelling it stops the job.
+     */
+    public CronFuture schedule(final Runnable task, final CronExpression expression) {
+        if (task == null || expression == null) {
             throw new NullPointerException();
         }
+        if (isShutdown()) {
+            throw new RejectedExecutionException("The executor has been shut down.");
+        }
 
-        this.setCorePoolSize(this.getCorePoolSize() + 1);
+        CronJob job = new CronJob(DEFAULT_GROUP, task, null, expression);
+        job.scheduleAfter(new DateTime(clock.currentTimeMillis()));
+        return job;
+    }
 
-        Runnable scheduleTask = new Runnable() {
+    /**
+     * Registers {@code task} under {@code jobId}, replacing and cancelling the job previously registered under it.
+     * The job leaves the registry when it is cancelled or its expression has no fire time left.
+     */
+    public CronFuture schedule(String jobId, Runnable task, CronExpression expression) {
+        return schedule(jobId, DEFAULT_GROUP, task, expression);
+    }
+
+    /**
+     * Registers {@code task} under {@code jobId} in {@code group}, such as a tenant. When the number of runs in
+     * flight is capped, the groups share the workers according to their weights, and the lateness of their runs is
+     * reported per group by {@link #getMetrics()}.
+     */
+    public CronFuture schedule(String jobId, String group, Runnable task, CronExpression expression) {
+        return schedule(jobId, group, task, expression, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers {@code task} under {@code jobId} in {@code group}, with runs interrupted after {@code timeout}, or
+     * never if it is 0. The timeouts of all the jobs are enforced by one watchdog thread; a task ignoring the
+     * interrupt keeps its worker until it returns, and is counted as timed out by {@link #getMetrics()}.
+     */
+    public CronFuture schedule(String jobId, String group, Runnable task, CronExpression expression, long timeout, TimeUnit unit) {
+        if (jobId == null || group == null || task == null || expression == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout should be >= 0, but given " + timeout);
+        }
+        if (isShutdown()) {
+            throw new RejectedExecutionException("The executor has been shut down.");
+        }
+
+        return register(jobId, new CronJob(group, task, null, expression, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Registers an asynchronous job under {@code jobId}: at each fire time {@code task} is called on a worker, which
+     * is released as soon as it returns the future of the run. A fire time is skipped while the run before is still
+     * pending.
+     */
+    public CronFuture scheduleAsync(String jobId, Supplier<? extends ListenableFuture<?>> task, CronExpression expression) {
+        return scheduleAsync(jobId, task, expression, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers an asynchronous job under {@code jobId} whose runs are cancelled with interruption after
+     * {@code timeout}, or never if it is 0.
+     */
+    public CronFuture scheduleAsync(String jobId, Supplier<? extends ListenableFuture<?>> task, CronExpression expression, long timeout,
+            TimeUnit unit) {
+        if (jobId == null || task == null || expression == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout should be >= 0, but given " + timeout);
+        }
+        if (isShutdown()) {
+            throw new RejectedExecutionException("The executor has been shut down.");
+        }
+
+        return register(jobId, new CronJob(DEFAULT_GROUP, new AsyncTask(task, unit.toNanos(timeout)), null, expression));
+    }
+
+    public CronMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Caps the number of cron runs in flight on the task executor, or lifts the cap if {@code maxInFlight} is 0, which
+     * is the default. Under a cap the due runs wait in one queue per group, which are served by weighted round robin,
+     * so a group firing thousands of jobs at once does not delay the runs of the other groups behind all of its own.
+     * A job has at most one run waiting, a fire time coming while it waits is skipped.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight should be >= 0, but given " + maxInFlight);
+        }
+
+        this.maxInFlight = maxInFlight;
+        fairQueue.dispatch();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the number of runs of {@code group} dispatched in each round of the fair queue, 1 by default.
+     */
+    public void setGroupWeight(String group, int weight) {
+        if (group == null) {
+            throw new NullPointerException();
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight should be > 0, but given " + weight);
+        }
+
+        groupWeights.put(group, weight);
+    }
+
+    /**
+     * Sets how long before its fire time a bucket of jobs is prepared: the {@link PreparableTask#prepare()} hooks of
+     * its tasks are called, and the pool is grown for its runs when it is sized adaptively. It is 0 by default, which
+     * disables both.
+     */
+    public void setLeadTime(long leadTime, TimeUnit unit) {
+        if (leadTime < 0) {
+            throw new IllegalArgumentException("leadTime should be >= 0, but given " + leadTime);
+        }
+
+        this.leadTime = unit.toMillis(leadTime);
+        Thread thread = timer;
+        if (thread != null) {
+            clock.wakeUp(thread);
+        }
+    }
+
+    /**
+     * Sizes the pool of the task executor, which has to be a {@code ThreadPoolExecutor} such as this executor, from
+     * the buckets due within the lead time. Their jobs are known in advance along with the average run time of each,
+     * so the core pool is grown and its threads started ahead of a burst, to run the work of the largest of these
+     * buckets in about a second, and shrunk back once the workers beyond the new size are idle.
+     */
+    public void setAdaptivePoolSize(int minPoolSize, int maxPoolSize) {
+        if (!(taskExecutor instanceof ThreadPoolExecutor)) {
+            throw new IllegalStateException("The task executor is not a ThreadPoolExecutor: " + taskExecutor);
+        }
+        if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException("Invalid pool sizes: " + minPoolSize + ", " + maxPoolSize);
+        }
+
+        this.minPoolSize = minPoolSize;
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * Returns the number of runs started on the task executor and not finished yet, only counted under a cap.
+     */
+    public int getInFlightCount() {
+        return fairQueue.getInFlightCount();
+    }
+
+    /**
+     * Registers a job under {@code jobId} which publishes its fire times instead of running a task, replacing and
+     * cancelling the job previously registered under it. The events are delivered on the task executor as far as
+     * each subscriber requests them, the others are handled by {@code overflow}; {@code bufferSize} is the number of
+     * events kept without demand by {@link FirePublisher.Overflow#BUFFER}. The subscribers are completed when the job
+     * is done.
+     */
+    public FirePublisher publish(String jobId, CronExpression expression, FirePublisher.Overflow overflow, int bufferSize) {
+        if (jobId == null || expression == null || overflow == null) {
+            throw new NullPointerException();
+        }
+        if (overflow == FirePublisher.Overflow.BUFFER && bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize should be > 0, but given " + bufferSize);
+        }
+        if (isShutdown()) {
+            throw new RejectedExecutionException("The executor has been shut down.");
+        }
+
+        final FirePublisher publisher = new FirePublisher(jobId, taskExecutor, overflow, bufferSize);
+        final CronJob job = new CronJob(DEFAULT_GROUP, null, publisher, expression);
+        job.addListener(new Runnable() {
             public void run() {
+                Throwable throwable = null;
                 try {
-                    DateTime now = new DateTime();
-                    DateTime time = expression.getTimeAfter(now);
-                    while (time != null) {
-                        schedule(task, time.getMillis() - now.getMillis(), TimeUnit.MILLISECONDS);
-                        while (now.isBefore(time)) {
-                            Thread.sleep(time.getMillis() - now.getMillis());
-                            now = new DateTime();
-                        }
-                        time = expression.getTimeAfter(now);
-                    }
-                } catch (RejectedExecutionException e) {
+                    job.get();
+                } catch (ExecutionException e) {
+                    throwable = e.getCause();
                 } catch (CancellationException e) {
+                    // a removed job completes its subscribers
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                } catch (ParseException e) {
-                    Throwables.propagate(e);
                 }
+                publisher.finish(throwable);
             }
-        };
+        }, MoreExecutors.directExecutor());
+        register(jobId, job);
+        return publisher;
+    }
 
-        execute(scheduleTask);
+    private CronFuture register(final String jobId, final CronJob job) {
+        CronJob previous = jobs.put(jobId, job);
+        if (previous != null) {
+            previous.cancel(false);
+        }
 
-        return null;
+        job.addListener(new Runnable() {
+            public void run() {
+                jobs.remove(jobId, job);
+            }
+        }, MoreExecutors.directExecutor());
+        job.scheduleAfter(new DateTime(clock.currentTimeMillis()));
+        return job;
     }
 
+    /**
+     * Cancels the job registered under {@code jobId}, returns false if there is none. The job leaves its bucket at
+     * once, and the bucket leaves the timer if it has no job left.
+     */
+    public boolean remove(String jobId) {
+        CronJob job = jobs.remove(jobId);
+        return job != null && job.cancel(false);
+    }
+
+    /**
+     * Replaces the expression of the job registered under {@code jobId}, returns false if there is none. The job
+     * leaves its bucket for the bucket of its new next fire time.
+     */
+    public boolean reschedule(String jobId, CronExpression expression) {
+        if (expression == null) {
+            throw new NullPointerException();
+        }
+
+        CronJob job = jobs.get(jobId);
+        return job != null && job.reschedule(expression);
+    }
+
+    /**
+     * Pauses the job registered under {@code jobId}, returns false if there is none or it is already paused. The job
+     * leaves its bucket until it is resumed.
+     */
+    public boolean pause(String jobId) {
+        CronJob job = jobs.get(jobId);
+        return job != null && job.pause();
+    }
+
+    /**
+     * Resumes the job registered under {@code jobId}, returns false if there is none or it is not paused.
+     */
+    public boolean resume(String jobId) {
+        CronJob job = jobs.get(jobId);
+        return job != null && job.resume();
+    }
+
+    public CronFuture getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    /**
+     * Returns the number of fire times the timer waits for.
+     */
+    int getBucketCount() {
+        return buckets.size();
+    }
+
+    private void wakeUpTimer() {
+        Thread thread = timer;
+        if (thread == null) {
+            synchronized (this) {
+                if (timer == null) {
+                    timer = getThreadFactory().newThread(new Timer());
+                    timer.start();
+                }
+                thread = timer;
+            }
+        }
+
+        clock.wakeUp(thread);
+    }
+
+    @Override
+    public void shutdown() {
+        stopTimer();
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        stopTimer();
+        return super.shutdownNow();
+    }
+
+    /**
+     * Stops the watchdog once the runs are over, as a graceful shutdown lets the running ones finish under their
+     * timeouts.
+     */
+    @Override
+    protected void terminated() {
+        watchdog.stop();
+        super.terminated();
+    }
+
+    private void stopTimer() {
+        stopped = true;
+        Thread thread = timer;
+        if (thread != null) {
+            clock.wakeUp(thread);
+        }
+    }
+
+    /**
+     * Hands an exception thrown by a cron task or a subscriber to the uncaught exception handler of the current
+     * thread, which prints it unless the thread factory of the executor set another one.
+     */
+    static void report(Throwable throwable) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, throwable);
+    }
+
+    /**
+     * Adds {@code job} to the bucket of {@code time} and returns the bucket.
+     */
+    private Bucket add(long time, CronJob job) {
+        while (true) {
+            Bucket bucket = buckets.get(time);
+            if (bucket == null) {
+                Bucket created = new Bucket(time);
+                bucket = buckets.putIfAbsent(time, created);
+                if (bucket == null) {
+                    created.add(job);
+                    Map.Entry<Long, Bucket> first = buckets.firstEntry();
+                    if (first == null || first.getKey() == time) {
+                        wakeUpTimer();
+                    }
+                    return created;
+                }
+            }
+
+            if (bucket.add(job)) {
+                return bucket;
+            }
+            // the bucket is being dispatched, a new one takes its place
+            buckets.remove(time, bucket);
+        }
+    }
+
+    /**
+     * Dispatches the buckets in fire time order, waiting for the first one with {@link CronClock#sleepUntil(long)}.
+     * A bucket is never dispatched before its fire time has been reached on the clock.
+     */
+    private class Timer implements Runnable {
+
+        public void run() {
+            try {
+                while (!stopped) {
+                    long now = clock.currentTimeMillis();
+                    Map.Entry<Long, Bucket> first = buckets.firstEntry();
+                    if (first != null && first.getKey() <= now) {
+                        try {
+                            first.getValue().run();
+                        } catch (Throwable e) {
+                            // the bucket is already removed, the timer goes on with the next one
+                            report(e);
+                        }
+                    } else {
+                        long time = first == null ? Long.MAX_VALUE : first.getKey();
+                        clock.sleepUntil(leadTime > 0 ? Math.min(time, lookAhead(now)) : time);
+                    }
+                }
+            } finally {
+                synchronized (CronThreadPoolExecutor.this) {
+                    // whatever stopped this timer, the next wake-up starts a new one
+                    if (timer == Thread.currentThread()) {
+                        timer = null;
+                    }
+                }
+                clock.detach(Thread.currentThread());
+            }
+        }
+
+        /**
+         * Prepares the buckets due within the lead time and sizes the pool for the largest, returns when the next
+         * bucket comes within the lead time. The buckets fire one after the other, so the pool only has to absorb
+         * one burst at a time.
+         */
+        private long lookAhead(long now) {
+            long lead = leadTime;
+            long expectedNanos = 0;
+            for (Bucket bucket : buckets.headMap(now + lead, true).values()) {
+                if (!bucket.prepared) {
+                    bucket.prepare();
+                }
+                expectedNanos = Math.max(expectedNanos, bucket.expectedNanos);
+            }
+            if (maxPoolSize > 0) {
+                resize(expectedNanos);
+            }
+
+            Long next = buckets.higherKey(now + lead);
+            return next == null ? Long.MAX_VALUE : next - lead;
+        }
+
+        private void resize(long expectedNanos) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) taskExecutor;
+            long needed = LongMath.divide(expectedNanos, TimeUnit.SECONDS.toNanos(1), RoundingMode.CEILING);
+            int target = (int) Math.min(Math.min(maxPoolSize, pool.getMaximumPoolSize()), Math.max(minPoolSize, needed));
+            int current = pool.getCorePoolSize();
+            if (target > current) {
+                pool.setCorePoolSize(target);
+                pool.prestartAllCoreThreads();
+            } else if (target < current && pool.getActiveCount() <= target) {
+                // the workers beyond the target are idle, they stop as soon as the core pool shrinks
+                pool.setCorePoolSize(target);
+            }
+        }
+    }
+
+    private class Bucket implements Runnable {
+
+        private final long time;
+        // null once the bucket is dispatched or emptied, a job then goes to a new bucket of the same time
+        private Set<CronJob> jobs = new LinkedHashSet<CronJob>();
+        // only accessed by the timer thread
+        private boolean prepared;
+        private long expectedNanos;
+
+        Bucket(long time) {
+            this.time = time;
+        }
+
+        synchronized boolean add(CronJob job) {
+            if (jobs == null) {
+                return false;
+            }
+            jobs.add(job);
+            return true;
+        }
+
+        synchronized void remove(CronJob job) {
+            if (jobs != null && jobs.remove(job) && jobs.isEmpty()) {
+                jobs = null;
+                buckets.remove(time, this);
+            }
+        }
+
+        /**
+         * Sums the expected run times of the jobs and calls their {@link PreparableTask#prepare()} hooks on the task
+         * executor, in batches as for their runs.
+         */
+        void prepare() {
+            prepared = true;
+            List<PreparableTask> tasks = new ArrayList<PreparableTask>();
+            synchronized (this) {
+                if (jobs == null) {
+                    return;
+                }
+                for (CronJob job : jobs) {
+                    expectedNanos += job.getExpectedRunNanos();
+                    if (job.task instanceof PreparableTask) {
+                        tasks.add((PreparableTask) job.task);
+                    }
+                }
+            }
+
+            for (final List<PreparableTask> batch : Lists.partition(tasks, BATCH_SIZE)) {
+                try {
+                    taskExecutor.execute(new Runnable() {
+                        public void run() {
+                            for (PreparableTask task : batch) {
+                                try {
+                                    task.prepare();
+                                } catch (Throwable e) {
+                                    // the run goes ahead unprepared
+                                    report(e);
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    return;
+                }
+            }
+        }
+
+        public void run() {
+            buckets.remove(time, this);
+            Set<CronJob> dispatched;
+            synchronized (this) {
+                dispatched = jobs;
+                jobs = null;
+            }
+            if (dispatched == null) {
+                // emptied while the timer picked it
+                return;
+            }
+
+            // the next fire times are computed before the jobs run, as a long run must not delay the next bucket
+            DateTime now = new DateTime(clock.currentTimeMillis());
+            DateTime after = now.getMillis() > time ? now : new DateTime(time);
+            List<CronJob> due = new ArrayList<CronJob>(dispatched.size());
+            for (CronJob job : dispatched) {
+                if (job.moveFrom(this, after)) {
+                    if (job.publisher == null) {
+                        due.add(job);
+                    } else {
+                        // offering an event never blocks, the subscribers are served on the task executor
+                        job.publisher.publish(time);
+                    }
+                }
+            }
+
+            if (maxInFlight > 0) {
+                fairQueue.addAll(due, time);
+                fairQueue.dispatch();
+                return;
+            }
+
+            for (final List<CronJob> batch : Lists.partition(due, BATCH_SIZE)) {
+                try {
+                    taskExecutor.execute(new Runnable() {
+                        public void run() {
+                            for (CronJob job : batch) {
+                                job.runTask(time);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the jobs are due again at their next fire times
+                    for (int i = 0; i < batch.size(); i++) {
+                        metrics.recordSkipped();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The runs waiting for the cap on runs in flight, in one queue per group. The queues take turns in a deficit round
+     * robin: a group dispatches as many runs as its weight before passing its turn, and leaves the rotation when its
+     * queue is empty.
+     */
+    private class FairQueue {
+
+        private final Map<String, GroupQueue> queues = new HashMap<String, GroupQueue>();
+        private final ArrayDeque<GroupQueue> rotation = new ArrayDeque<GroupQueue>();
+        private int inFlight;
+        private boolean dispatching;
+
+        synchronized void addAll(List<CronJob> jobs, long fireTime) {
+            for (CronJob job : jobs) {
+                if (job.queued) {
+                    metrics.recordSkipped();
+                    continue;
+                }
+                job.queued = true;
+                GroupQueue queue = queues.get(job.group);
+                if (queue == null) {
+                    queue = new GroupQueue(job.group);
+                    queues.put(job.group, queue);
+                }
+                if (queue.runs.isEmpty()) {
+                    rotation.add(queue);
+                }
+                queue.runs.add(new Run(job, fireTime));
+            }
+        }
+
+        synchronized int getInFlightCount() {
+            return inFlight;
+        }
+
+        /**
+         * Starts runs until the cap is reached. Only one thread dispatches at a time, a finished run calling it
+         * meanwhile leaves its free slot to that thread, which keeps a direct task executor from recursing.
+         */
+        void dispatch() {
+            synchronized (this) {
+                if (dispatching) {
+                    return;
+                }
+                dispatching = true;
+            }
+
+            while (true) {
+                Run run;
+                synchronized (this) {
+                    if (rotation.isEmpty() || (maxInFlight > 0 && inFlight >= maxInFlight)) {
+                        dispatching = false;
+                        return;
+                    }
+                    run = next();
+                    inFlight++;
+                }
+
+                try {
+                    taskExecutor.execute(run);
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    metrics.recordSkipped();
+                }
+            }
+        }
+
+        private Run next() {
+            GroupQueue queue = rotation.peek();
+            if (queue.deficit == 0) {
+                Integer weight = groupWeights.get(queue.group);
+                queue.deficit = weight == null ? 1 : weight;
+            }
+
+            Run run = queue.runs.poll();
+            run.job.queued = false;
+            queue.deficit--;
+            if (queue.runs.isEmpty()) {
+                rotation.poll();
+                queue.deficit = 0;
+            } else if (queue.deficit == 0) {
+                rotation.add(rotation.poll());
+            }
+            return run;
+        }
+
+        synchronized void finished() {
+            inFlight--;
+        }
+    }
+
+    private static class GroupQueue {
+
+        private final String group;
+        private final ArrayDeque<Run> runs = new ArrayDeque<Run>();
+        private int deficit;
+
+        GroupQueue(String group) {
+            this.group = group;
+        }
+    }
+
+    private class Run implements Runnable {
+
+        private final CronJob job;
+        private final long fireTime;
+
+        Run(CronJob job, long fireTime) {
+            this.job = job;
+            this.fireTime = fireTime;
+        }
+
+        public void run() {
+            try {
+                job.runTask(fireTime);
+            } finally {
+                fairQueue.finished();
+                fairQueue.dispatch();
+            }
+        }
+    }
+
+    /**
+     * Starts a run unless the previous one is pending, and tracks its future through a listener instead of a worker.
+     */
+    private class AsyncTask implements Runnable {
+
+        private final Supplier<? extends ListenableFuture<?>> supplier;
+        private final long timeoutNanos;
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        AsyncTask(Supplier<? extends ListenableFuture<?>> supplier, long timeoutNanos) {
+            this.supplier = supplier;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        public void run() {
+            if (!pending.compareAndSet(false, true)) {
+                metrics.recordSkipped();
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final ListenableFuture<?> future;
+            try {
+                future = Preconditions.checkNotNull(supplier.get());
+            } catch (Throwable e) {
+                metrics.recordFailure(System.nanoTime() - start);
+                pending.set(false);
+                report(e);
+                return;
+            }
+
+            final Watchdog.Deadline deadline = timeoutNanos == 0 ? null : watchdog.watch(start + timeoutNanos, future);
+            future.addListener(new Runnable() {
+                public void run() {
+                    long nanos = System.nanoTime() - start;
+                    if (deadline != null && !deadline.finish()) {
+                        metrics.recordTimeout(nanos);
+                    } else if (future.isCancelled()) {
+                        metrics.recordFailure(nanos);
+                    } else {
+                        try {
+                            Uninterruptibles.getUninterruptibly(future);
+                            metrics.recordRun(nanos);
+                        } catch (ExecutionException e) {
+                            metrics.recordFailure(nanos);
+                        }
+                    }
+                    pending.set(false);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    private class CronJob extends AbstractFuture<Object> implements CronFuture {
+
+        private final String group;
+        private final Runnable task;
+        private final FirePublisher publisher;
+        private final long timeoutNanos;
+        // an exponential moving average, the last run weighing 1/8
+        private volatile long averageRunNanos;
+        private volatile CronExpression expression;
+        // the bucket the job is due in, a bucket being dispatched only runs the jobs still due in it
+        private Bucket bucket;
+        private volatile long nextTime;
+        private volatile boolean paused;
+        // whether a run of the job waits in the fair queue, guarded by the fair queue
+        private boolean queued;
+
+        CronJob(String group, Runnable task, FirePublisher publisher, CronExpression expression) {
+            this(group, task, publisher, expression, 0);
+        }
+
+        CronJob(String group, Runnable task, FirePublisher publisher, CronExpression expression, long timeoutNanos) {
+            this.group = group;
+            this.task = task;
+            this.publisher = publisher;
+            this.timeoutNanos = timeoutNanos;
+            this.expression = expression;
+        }
+
+        /**
+         * Moves the job from {@code from} to the bucket of its next fire time after {@code after}, returns false if
+         * the job is not due in {@code from}.
+         */
+        synchronized boolean moveFrom(Bucket from, DateTime after) {
+            if (bucket != from || isDone()) {
+                return false;
+            }
+
+            scheduleAfter(after);
+            return true;
+        }
+
+        public CronExpression getExpression() {
+            return expression;
+        }
+
+        public synchronized boolean reschedule(CronExpression expression) {
+            if (expression == null) {
+                throw new NullPointerException();
+            }
+            if (isDone()) {
+                return false;
+            }
+
+            this.expression = expression;
+            if (!paused) {
+                scheduleAfter(new DateTime(clock.currentTimeMillis()));
+            }
+            return true;
+        }
+
+        public synchronized boolean pause() {
+            if (isDone() || paused) {
+                return false;
+            }
+
+            paused = true;
+            unlink();
+            return true;
+        }
+
+        public synchronized boolean resume() {
+            if (isDone() || !paused) {
+                return false;
+            }
+
+            paused = false;
+            scheduleAfter(new DateTime(clock.currentTimeMillis()));
+            return true;
+        }
+
+        public boolean isPaused() {
+            return paused;
+        }
+
+        synchronized void scheduleAfter(DateTime dateTime) {
+            unlink();
+            try {
+                DateTime time = expression.getTimeAfter(dateTime);
+                if (time == null) {
+                    set(null);
+                } else {
+                    nextTime = time.getMillis();
+                    bucket = add(nextTime, this);
+                }
+            } catch (ParseException e) {
+                setException(e);
+            } catch (RejectedExecutionException e) {
+                setException(e);
+            }
+        }
+
+        void runTask(long fireTime) {
+            if (isCancelled()) {
+                return;
+            }
+
+            metrics.recordLateness(group, clock.currentTimeMillis() - fireTime);
+            if (task instanceof AsyncTask) {
+                // the run is recorded when its future completes
+                task.run();
+                return;
+            }
+
+            long start = System.nanoTime();
+            Watchdog.Deadline deadline = timeoutNanos == 0 ? null : watchdog.watch(start + timeoutNanos, Thread.currentThread());
+            boolean failed = false;
+            boolean timedOut;
+            try {
+                task.run();
+            } catch (Throwable e) {
+                // unlike a periodic task, a failed run does not stop the next ones, nor the rest of its batch
+                failed = true;
+                report(e);
+            } finally {
+                // a deadline left live would interrupt whatever the worker runs next
+                timedOut = deadline != null && !deadline.finish();
+            }
+
+            long nanos = System.nanoTime() - start;
+            long average = averageRunNanos;
+            averageRunNanos = average == 0 ? nanos : average + (nanos - average) / 8;
+            if (timedOut) {
+                metrics.recordTimeout(nanos);
+            } else if (failed) {
+                metrics.recordFailure(nanos);
+            } else {
+                metrics.recordRun(nanos);
+            }
+        }
+
+        /**
+         * Returns how long a run is expected to hold a worker, the average of the runs of the executor until the job
+         * has run. Asynchronous jobs only hold a worker to start their runs.
+         */
+        long getExpectedRunNanos() {
+            if (task == null || task instanceof AsyncTask) {
+                return 0;
+            }
+            long average = averageRunNanos;
+            return average != 0 ? average : metrics.getAverageRunTime(TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Removes the job from the bucket it is due in, if any.
+         */
+        synchronized void unlink() {
+            if (bucket != null) {
+                bucket.remove(this);
+                bucket = null;
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            unlink();
+            return true;
+        }
+
+        @Override
+        protected boolean setException(Throwable throwable) {
+            if (!super.setException(throwable)) {
+                return false;
+            }
+            unlink();
+            return true;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            if (paused) {
+                return unit.convert(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            return unit.convert(nextTime - clock.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            return Longs.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
 }
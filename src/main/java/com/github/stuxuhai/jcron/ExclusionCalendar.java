@@ -0,0 +1,214 @@
+/*
+ * Create Date: 2026-10-19 18:36:27
+ */
+package com.github.stuxuhai.jcron;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.joda.time.LocalDate;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * A named set of local dates on which a schedule does not fire, such as public holidays or freeze windows. The
+ * dates are kept as one bitset per year, twelve month masks whose bit d stands for day d, so the search for the next
+ * fire time drops every excluded day of a month in one mask operation instead of retrying fire time after fire time.
+ *
+ * <pre>
+ * ExclusionCalendar holidays = ExclusionCalendar.builder(&quot;holidays&quot;).exclude(new LocalDate(2026, 12, 25))
+ *         .exclude(new LocalDate(2026, 12, 20), new LocalDate(2027, 1, 3)).build();
+ * CronExpression cronExpression = new CronExpression(&quot;0 0 2 ? * 1-5&quot;).excluding(holidays);
+ * </pre>
+ */
+public final class ExclusionCalendar {
+
+    private final String name;
+    private final ImmutableSortedMap<Integer, int[]> excludedDays;
+
+    private ExclusionCalendar(String name, SortedMap<Integer, int[]> excludedDays) {
+        this.name = name;
+        this.excludedDays = ImmutableSortedMap.copyOfSorted(excludedDays);
+    }
+
+    public static Builder builder(String name) {
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        return new Builder(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isExcluded(LocalDate date) {
+        return (excludedDays(date.getYear(), date.getMonthOfYear()) & (1 << date.getDayOfMonth())) != 0;
+    }
+
+    /**
+     * Returns the excluded days of the month as a mask whose bit d stands for day d.
+     */
+    int excludedDays(int year, int month) {
+        int[] months = excludedDays.get(year);
+        return months == null ? 0 : months[month - 1];
+    }
+
+    /**
+     * Returns a calendar excluding the dates of both calendars.
+     */
+    ExclusionCalendar union(ExclusionCalendar other) {
+        Builder builder = new Builder(name + "+" + other.name);
+        builder.addAll(excludedDays);
+        builder.addAll(other.excludedDays);
+        return builder.build();
+    }
+
+    int encodedLength() {
+        return 2 + name.getBytes(Charsets.UTF_8).length + 2 + excludedDays.size() * (2 + 12 * 4);
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        byte[] bytes = name.getBytes(Charsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+        buffer.putShort((short) excludedDays.size());
+        for (Map.Entry<Integer, int[]> entry : excludedDays.entrySet()) {
+            buffer.putShort(entry.getKey().shortValue());
+            for (int days : entry.getValue()) {
+                buffer.putInt(days);
+            }
+        }
+    }
+
+    /**
+     * Reads a calendar written by {@link #writeTo(ByteBuffer)}, whose years have to be in ascending order within the
+     * years of the schedules, and whose masks have no bit beyond the days of their months.
+     */
+    static ExclusionCalendar readFrom(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        SortedMap<Integer, int[]> excludedDays = new TreeMap<Integer, int[]>();
+        int previous = Integer.MIN_VALUE;
+        for (int years = buffer.getShort() & 0xFFFF; years > 0; years--) {
+            int year = buffer.getShort();
+            if (year <= previous || !CronExpression.YEAR_RANGE.contains(year)) {
+                throw new IllegalArgumentException("Invalid year of exclusion calendar: " + year);
+            }
+            previous = year;
+
+            int[] months = new int[12];
+            for (int month = 0; month < 12; month++) {
+                months[month] = buffer.getInt();
+                int lengthOfMonth = new LocalDate(year, month + 1, 1).dayOfMonth().getMaximumValue();
+                if ((months[month] & ~(((1 << lengthOfMonth) - 1) << 1)) != 0) {
+                    throw new IllegalArgumentException("Invalid days of exclusion calendar in " + year + "-" + (month + 1) + ": "
+                            + Integer.toBinaryString(months[month]));
+                }
+            }
+            excludedDays.put(year, months);
+        }
+        return new ExclusionCalendar(new String(bytes, Charsets.UTF_8), excludedDays);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        for (Map.Entry<Integer, int[]> entry : excludedDays.entrySet()) {
+            result = 31 * result + entry.getKey();
+            result = 31 * result + Arrays.hashCode(entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ExclusionCalendar)) {
+            return false;
+        }
+
+        ExclusionCalendar other = (ExclusionCalendar) obj;
+        if (!name.equals(other.name) || !excludedDays.keySet().equals(other.excludedDays.keySet())) {
+            return false;
+        }
+        for (Map.Entry<Integer, int[]> entry : excludedDays.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), other.excludedDays.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public static final class Builder {
+
+        private final String name;
+        private final SortedMap<Integer, int[]> excludedDays = new TreeMap<Integer, int[]>();
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Excludes {@code date}, which is ignored if it falls outside the years 1970 to 9999 that schedules fire in.
+         */
+        public Builder exclude(LocalDate date) {
+            if (!CronExpression.YEAR_RANGE.contains(date.getYear())) {
+                return this;
+            }
+
+            int[] months = excludedDays.get(date.getYear());
+            if (months == null) {
+                months = new int[12];
+                excludedDays.put(date.getYear(), months);
+            }
+            months[date.getMonthOfYear() - 1] |= 1 << date.getDayOfMonth();
+            return this;
+        }
+
+        /**
+         * Excludes the dates from {@code from} to {@code to}, both inclusive.
+         */
+        public Builder exclude(LocalDate from, LocalDate to) {
+            if (to.isBefore(from)) {
+                throw new IllegalArgumentException("to should not be before from, but given " + from + " and " + to);
+            }
+
+            for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+                exclude(date);
+            }
+            return this;
+        }
+
+        private void addAll(Map<Integer, int[]> days) {
+            for (Map.Entry<Integer, int[]> entry : days.entrySet()) {
+                int[] months = excludedDays.get(entry.getKey());
+                if (months == null) {
+                    months = new int[12];
+                    excludedDays.put(entry.getKey(), months);
+                }
+                for (int month = 0; month < 12; month++) {
+                    months[month] |= entry.getValue()[month];
+                }
+            }
+        }
+
+        public ExclusionCalendar build() {
+            SortedMap<Integer, int[]> copy = new TreeMap<Integer, int[]>();
+            for (Map.Entry<Integer, int[]> entry : excludedDays.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().clone());
+            }
+            return new ExclusionCalendar(name, copy);
+        }
+    }
+}
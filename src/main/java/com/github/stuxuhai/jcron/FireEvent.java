@@ -0,0 +1,56 @@
+/*
+ * Create Date: 2026-10-19 19:02:44
+ */
+package com.github.stuxuhai.jcron;
+
+import org.joda.time.DateTime;
+
+import com.google.common.base.Objects;
+
+/**
+ * A fire time of a job, as published by a {@link FirePublisher}.
+ */
+public final class FireEvent {
+
+    private final String jobId;
+    private final DateTime fireTime;
+
+    FireEvent(String jobId, DateTime fireTime) {
+        this.jobId = jobId;
+        this.fireTime = fireTime;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Returns the scheduled fire time, which the event is published at or shortly after.
+     */
+    public DateTime getFireTime() {
+        return fireTime;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(jobId, fireTime);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FireEvent)) {
+            return false;
+        }
+
+        FireEvent other = (FireEvent) obj;
+        return jobId.equals(other.jobId) && fireTime.equals(other.fireTime);
+    }
+
+    @Override
+    public String toString() {
+        return jobId + "@" + fireTime;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Create Date: 2026-10-19 19:02:44
+ */
+package com.github.stuxuhai.jcron;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+/**
+ * Publishes the fire times of a job registered with
+ * {@link CronThreadPoolExecutor#publish(String, CronExpression, Overflow, int)}. The timer thread only offers each
+ * event to the subscriptions, and the events are delivered on the task executor as far as the subscribers have
+ * requested them, so a slow subscriber never piles up tasks in the executor. The events arriving without demand are
+ * handled by the {@link Overflow} strategy of the publisher.
+ *
+ * <p>
+ * {@link Subscriber} and {@link Subscription} follow the contract of {@code java.util.concurrent.Flow}, which is not
+ * available on Java 6, so adapting them to Flow or Reactive Streams is a matter of delegating each method.
+ */
+public class FirePublisher {
+
+    public enum Overflow {
+        /**
+         * Drops the events arriving without demand.
+         */
+        DROP,
+        /**
+         * Keeps the most recent event arriving without demand, replacing the one kept before.
+         */
+        LATEST,
+        /**
+         * Keeps up to the buffer size of events arriving without demand, and drops the next ones.
+         */
+        BUFFER
+    }
+
+    public interface Subscriber {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(FireEvent event);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+
+        void request(long n);
+
+        void cancel();
+    }
+
+    private final String jobId;
+    private final Executor executor;
+    private final Overflow overflow;
+    private final int bufferSize;
+    private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<EventSubscription>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean done;
+    private volatile Throwable error;
+
+    FirePublisher(String jobId, Executor executor, Overflow overflow, int bufferSize) {
+        this.jobId = jobId;
+        this.executor = executor;
+        this.overflow = overflow;
+        this.bufferSize = overflow == Overflow.DROP ? 0 : overflow == Overflow.LATEST ? 1 : bufferSize;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Subscribes {@code subscriber} to the fire times from now on. A subscriber arriving after the job is done is
+     * completed at once.
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+        if (done) {
+            subscription.finish(error);
+        }
+    }
+
+    /**
+     * Returns the number of events dropped by the overflow strategy over all the subscriptions.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    void publish(long fireTime) {
+        FireEvent event = new FireEvent(jobId, new DateTime(fireTime));
+        for (EventSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Completes the subscriptions once they have drained their events, or signals {@code throwable} if not null.
+     */
+    void finish(Throwable throwable) {
+        error = throwable;
+        done = true;
+        for (EventSubscription subscription : subscriptions) {
+            subscription.finish(throwable);
+        }
+    }
+
+    private class EventSubscription implements Subscription, Runnable {
+
+        private final Subscriber subscriber;
+        private final ArrayDeque<FireEvent> events = new ArrayDeque<FireEvent>();
+        private long requested;
+        private boolean draining;
+        private boolean cancelled;
+        private boolean finished;
+        private Throwable error;
+
+        EventSubscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(FireEvent event) {
+            synchronized (this) {
+                if (cancelled || finished) {
+                    return;
+                }
+
+                // until the subscriber runs out of demand, events are queued for delivery
+                if (events.size() - requested >= bufferSize) {
+                    droppedCount.incrementAndGet();
+                    if (overflow != Overflow.LATEST) {
+                        return;
+                    }
+                    events.pollLast();
+                }
+                events.add(event);
+            }
+            drain();
+        }
+
+        void finish(Throwable throwable) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                error = throwable;
+                if (throwable != null) {
+                    events.clear();
+                }
+            }
+            drain();
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                finish(new IllegalArgumentException("n should be > 0, but given " + n));
+                return;
+            }
+
+            synchronized (this) {
+                requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            }
+            drain();
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                events.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        private void drain() {
+            synchronized (this) {
+                if (draining || cancelled) {
+                    return;
+                }
+                draining = true;
+            }
+
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    if (!finished) {
+                        draining = false;
+                        return;
+                    }
+                    // the executor is shut down, the events left are dropped and the end is signalled on this thread
+                    events.clear();
+                }
+                run();
+            }
+        }
+
+        /**
+         * Delivers the events as far as they are requested, then the completion or the error once no event is left. A
+         * subscriber throwing is cancelled, and what it threw is reported to the uncaught exception handler.
+         */
+        public void run() {
+            while (true) {
+                FireEvent event;
+                Throwable throwable;
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+                    if (requested > 0 && !events.isEmpty()) {
+                        requested--;
+                        event = events.poll();
+                        throwable = null;
+                    } else if (finished && events.isEmpty()) {
+                        cancelled = true;
+                        draining = false;
+                        event = null;
+                        throwable = error;
+                    } else {
+                        draining = false;
+                        return;
+                    }
+                }
+
+                try {
+                    if (event != null) {
+                        subscriber.onNext(event);
+                    } else {
+                        subscriptions.remove(this);
+                        if (throwable == null) {
+                            subscriber.onComplete();
+                        } else {
+                            subscriber.onError(throwable);
+                        }
+                        return;
+                    }
+                } catch (Throwable e) {
+                    cancel();
+                    synchronized (this) {
+                        draining = false;
+                    }
+                    CronThreadPoolExecutor.report(e);
+                    return;
+                }
+            }
+        }
+    }
+}
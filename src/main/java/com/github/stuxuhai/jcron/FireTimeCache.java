@@ -0,0 +1,199 @@
+/*
+ * Create Date: 2026-10-19 15:12:40
+ */
+package com.github.stuxuhai.jcron;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * A cache of upcoming fire times shared by the callers of the same schedules, such as thousands of jobs running
+ * {@code 0 * * * * ?}. Each compiled expression and chronology keeps a rolling window of its next fire times in a ring buffer
+ * of longs; a lookup within the window is a binary search under a read lock, and the window only advances, under the
+ * write lock, when a caller asks past its end. A caller lagging behind the window is answered by the expression
+ * itself, so it does not pull the window back for the others. Timelines that have not been looked up for a while are
+ * evicted.
+ */
+public class FireTimeCache {
+
+    private static final int DEFAULT_WINDOW_SIZE = 64;
+    private static final long DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES = 10;
+
+    private final LoadingCache<Key, Timeline> timelines;
+
+    public FireTimeCache() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param windowSize the number of fire times computed ahead for each expression, rounded up to a power of two
+     * @param expireAfterAccess how long a timeline is kept after its last lookup
+     */
+    public FireTimeCache(int windowSize, long expireAfterAccess, TimeUnit unit) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize should be > 0, but given " + windowSize);
+        }
+
+        final int capacity = Integer.highestOneBit(windowSize * 2 - 1);
+        this.timelines = CacheBuilder.newBuilder().expireAfterAccess(expireAfterAccess, unit).build(new CacheLoader<Key, Timeline>() {
+            @Override
+            public Timeline load(Key key) {
+                return new Timeline(key.compiled, key.chronology, capacity);
+            }
+        });
+    }
+
+    /**
+     * Returns the same fire time as {@link CronExpression#getTimeAfter(DateTime)}, from the shared timeline of the
+     * expression. Timelines are keyed on the compiled form, so expressions differing only by their {@code H} hash keys
+     * get their own, while equivalent spellings of a schedule share one.
+     */
+    public DateTime getTimeAfter(CronExpression expression, DateTime dateTime) throws ParseException {
+        Timeline timeline = timelines.getUnchecked(new Key(expression.compile(), dateTime.getChronology()));
+        long millis = timeline.timeAfter(dateTime.getMillis());
+        return millis == CompiledExpression.NONE ? null : new DateTime(millis, dateTime.getChronology());
+    }
+
+    /**
+     * Returns the approximate number of timelines in the cache.
+     */
+    public long size() {
+        return timelines.size();
+    }
+
+    public void invalidateAll() {
+        timelines.invalidateAll();
+    }
+
+    private static class Key {
+
+        private final CompiledExpression compiled;
+        private final Chronology chronology;
+
+        Key(CompiledExpression compiled, Chronology chronology) {
+            this.compiled = compiled;
+            this.chronology = chronology;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(compiled, chronology);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return compiled.equals(other.compiled) && chronology.equals(other.chronology);
+        }
+    }
+
+    /**
+     * Holds every fire time in (start, ring[last]] in ascending order, or in (start, +infinity) once the schedule is
+     * exhausted.
+     */
+    private static final class Timeline {
+
+        private final CompiledExpression compiled;
+        private final Chronology chronology;
+        private final long[] ring;
+        private final int mask;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private long start;
+        private int head;
+        private int size;
+        private boolean exhausted;
+
+        Timeline(CompiledExpression compiled, Chronology chronology, int capacity) {
+            this.compiled = compiled;
+            this.chronology = chronology;
+            this.ring = new long[capacity];
+            this.mask = capacity - 1;
+            this.start = Long.MIN_VALUE;
+        }
+
+        long timeAfter(long after) {
+            lock.readLock().lock();
+            try {
+                if (covers(after)) {
+                    return search(after);
+                }
+                if (after < start) {
+                    return compiled.timeAfter(after, chronology);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            lock.writeLock().lock();
+            try {
+                if (after < start) {
+                    return compiled.timeAfter(after, chronology);
+                }
+                if (!covers(after)) {
+                    advance(after);
+                }
+                return search(after);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private boolean covers(long after) {
+            return after >= start && (exhausted || (size > 0 && after < ring[(head + size - 1) & mask]));
+        }
+
+        /**
+         * Returns the first fire time after {@code after}, which must be covered by the window.
+         */
+        private long search(long after) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (ring[(head + middle) & mask] > after) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return low < size ? ring[(head + low) & mask] : CompiledExpression.NONE;
+        }
+
+        /**
+         * Moves the window forward so that it starts at {@code after}, keeping the fire times still ahead of it and
+         * computing the rest.
+         */
+        private void advance(long after) {
+            while (size > 0 && ring[head] <= after) {
+                head = (head + 1) & mask;
+                size--;
+            }
+            start = after;
+
+            long last = size > 0 ? ring[(head + size - 1) & mask] : after;
+            while (size < ring.length && !exhausted) {
+                last = compiled.timeAfter(last, chronology);
+                if (last == CompiledExpression.NONE) {
+                    exhausted = true;
+                } else {
+                    ring[(head + size) & mask] = last;
+                    size++;
+                }
+            }
+        }
+    }
+}
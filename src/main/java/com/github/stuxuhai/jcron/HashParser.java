@@ -0,0 +1,103 @@
+/*
+ * Create Date: 2026-10-19 10:12:31
+ */
+package com.github.stuxuhai.jcron;
+
+import java.text.ParseException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+import org.joda.time.MutableDateTime;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Range;
+import com.google.common.hash.Hashing;
+
+/**
+ * Parses Jenkins-style hashed values: {@code H}, {@code H/step}, {@code H(from-to)} and {@code H(from-to)/step}.
+ * The value is derived from a hash of the expression's hash key, so it is spread across the range but stays the
+ * same for a given key across restarts.
+ */
+public class HashParser extends AbstractParser {
+
+    private Set<Integer> set;
+    private Set<Integer> result;
+    private Range<Integer> range;
+    private DurationField type;
+    private int hash;
+    private static final Pattern HASH_PATTERN = Pattern.compile("H(?:\\((\\d+)-(\\d+)\\))?(?:/(\\d+))?");
+    private static final Range<Integer> HASHED_DAY_OF_MONTH_RANGE = Range.closed(1, 28);
+
+    protected HashParser(Range<Integer> range, DurationField type, String hashKey) {
+        super(range, type);
+        this.range = range;
+        this.type = type;
+        this.hash = Hashing.murmur3_32().newHasher().putString(hashKey, Charsets.UTF_8).putInt(type.index).hash().asInt() & Integer.MAX_VALUE;
+    }
+
+    @Override
+    protected boolean matches(String cronFieldExp) throws ParseException {
+        Matcher m = HASH_PATTERN.matcher(cronFieldExp);
+        if (m.matches()) {
+            // H in day-of-month stays within 1-28 so that it fires in every month.
+            int from = type == DurationField.DAY_OF_MONTH ? HASHED_DAY_OF_MONTH_RANGE.lowerEndpoint() : range.lowerEndpoint();
+            int to = type == DurationField.DAY_OF_MONTH ? HASHED_DAY_OF_MONTH_RANGE.upperEndpoint() : range.upperEndpoint();
+            if (m.group(1) != null) {
+                from = Integer.parseInt(m.group(1));
+                to = Integer.parseInt(m.group(2));
+            }
+            int step = m.group(3) != null ? Integer.parseInt(m.group(3)) : 0;
+
+            if (from <= to && range.contains(from) && range.contains(to) && (m.group(3) == null || (step > 0 && range.contains(step)))) {
+                if (set == null) {
+                    set = new HashSet<Integer>();
+                }
+
+                if (step == 0) {
+                    set.add(from + hash % (to - from + 1));
+                } else {
+                    for (int i = from + hash % Math.min(step, to - from + 1); i <= to; i += step) {
+                        set.add(i);
+                    }
+                }
+
+                return true;
+            } else {
+                throw new ParseException(
+                        String.format("Invalid value of %s: %s, out of range %s", type.name, cronFieldExp, range.toString().replace("‥", ", ")), -1);
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    protected Set<Integer> parse(DateTime dateTime) {
+        if (type == DurationField.DAY_OF_WEEK) {
+            if (set != null) {
+                if (result == null) {
+                    result = new HashSet<Integer>();
+                }
+
+                result.clear();
+
+                MutableDateTime mdt = dateTime.dayOfMonth().withMaximumValue().toMutableDateTime();
+                int maxDayOfMonth = mdt.getDayOfMonth();
+                for (int i = 1; i <= maxDayOfMonth; i++) {
+                    mdt.setDayOfMonth(i);
+                    if (set.contains(mdt.getDayOfWeek())) {
+                        result.add(mdt.getDayOfMonth());
+                    }
+                }
+
+                return result;
+            }
+        }
+
+        return set;
+    }
+
+}
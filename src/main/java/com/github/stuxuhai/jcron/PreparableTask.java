@@ -0,0 +1,17 @@
+/*
+ * Create Date: 2026-10-19 20:28:15
+ */
+package com.github.stuxuhai.jcron;
+
+/**
+ * A cron task with a hook called ahead of each fire time, to open connections or warm caches before it runs.
+ */
+public interface PreparableTask extends Runnable {
+
+    /**
+     * Called on the task executor about {@link CronThreadPoolExecutor#setLeadTime(long, java.util.concurrent.TimeUnit)
+     * the lead time} before the next fire time. It is skipped when the job is scheduled or rescheduled within the lead
+     * time of its fire time.
+     */
+    void prepare();
+}
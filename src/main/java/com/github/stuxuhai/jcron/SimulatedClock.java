@@ -0,0 +1,141 @@
+/*
+ * Create Date: 2026-10-19 17:21:50
+ */
+package com.github.stuxuhai.jcron;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.joda.time.DateTime;
+
+/**
+ * A clock in virtual time for replaying a schedule: time only moves when {@link #advanceTo(long)} is called, and the
+ * timer of the executor then jumps straight from one fire time to the next. With
+ * {@code MoreExecutors.directExecutor()} as the task executor the tasks run on the timer thread in fire time order,
+ * so a year of dispatches replays deterministically in the time it takes to run the tasks.
+ */
+public class SimulatedClock implements CronClock {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private long now;
+    private long horizon;
+    // the timer is waiting past the horizon
+    private boolean idle;
+    private boolean wokenUp;
+    private Thread timer;
+    private Thread detached;
+
+    public SimulatedClock(long millis) {
+        this.now = millis;
+        this.horizon = millis;
+    }
+
+    public SimulatedClock(DateTime dateTime) {
+        this(dateTime.getMillis());
+    }
+
+    public long currentTimeMillis() {
+        lock.lock();
+        try {
+            return now;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void sleepUntil(long time) {
+        lock.lock();
+        try {
+            if (wokenUp) {
+                wokenUp = false;
+                return;
+            }
+            if (time <= horizon) {
+                now = Math.max(now, time);
+                return;
+            }
+
+            now = horizon;
+            idle = true;
+            changed.signalAll();
+            long current = horizon;
+            while (!wokenUp && horizon == current) {
+                changed.await();
+            }
+            idle = false;
+            wokenUp = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void wakeUp(Thread timer) {
+        lock.lock();
+        try {
+            if (timer == detached) {
+                return;
+            }
+            this.timer = timer;
+            wokenUp = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void detach(Thread timer) {
+        lock.lock();
+        try {
+            detached = timer;
+            if (this.timer == timer) {
+                this.timer = null;
+                idle = false;
+                wokenUp = false;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the time forward to {@code millis}, and returns once the timer has dispatched every bucket due until then.
+     *
+     * @throws IllegalStateException if called by the timer, for instance from a task run by a direct executor, as
+     *             the timer cannot wait for itself
+     */
+    public void advanceTo(long millis) throws InterruptedException {
+        lock.lock();
+        try {
+            if (Thread.currentThread() == timer) {
+                throw new IllegalStateException("The clock cannot be advanced by its timer.");
+            }
+            if (millis < horizon) {
+                throw new IllegalArgumentException("The clock cannot go back to " + new DateTime(millis) + " from " + new DateTime(horizon));
+            }
+
+            horizon = millis;
+            changed.signalAll();
+            while (timer != null && (!idle || wokenUp || now != horizon)) {
+                changed.await();
+            }
+            if (timer == null) {
+                now = horizon;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void advanceTo(DateTime dateTime) throws InterruptedException {
+        advanceTo(dateTime.getMillis());
+    }
+
+    public void advanceBy(long millis) throws InterruptedException {
+        advanceTo(currentTimeMillis() + millis);
+    }
+}
@@ -33,7 +33,8 @@ public class StepParser extends AbstractParser {
     protected boolean matches(String cronFieldExp) throws ParseException {
         Matcher m = STEP_PATTERN.matcher(cronFieldExp);
         if (m.matches()) {
-            int start = m.group(1).equals("*") ? 0 : Integer.parseInt(m.group(1));
+            // as in Quartz and crontab, */n starts from the lowest value of the field: */3 is 1,4,7,10 for months
+            int start = m.group(1).equals("*") ? range.lowerEndpoint() : Integer.parseInt(m.group(1));
             int step = Integer.parseInt(m.group(2));
             if (step > 0 && range.contains(step) && range.contains(start)) {
                 if (set == null) {
@@ -0,0 +1,39 @@
+/*
+ * Create Date: 2026-10-19 17:21:50
+ */
+package com.github.stuxuhai.jcron;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits with {@link LockSupport#parkNanos(Object, long)}, whose deadline is kept on {@link System#nanoTime()} and
+ * neither spins nor drifts with the wall clock. The wait is derived from the wall clock, so it lasts at most
+ * {@link #WALL_CLOCK_CHECK_INTERVAL} before the timer reads the wall clock again, which follows NTP steps and suspends.
+ */
+final class SystemClock implements CronClock {
+
+    static final long WALL_CLOCK_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public void sleepUntil(long time) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(time - System.currentTimeMillis());
+        if (remaining <= 0) {
+            return;
+        }
+
+        // a spurious return only costs the timer another look at the wall clock
+        LockSupport.parkNanos(this, Math.min(remaining, WALL_CLOCK_CHECK_INTERVAL));
+    }
+
+    public void wakeUp(Thread timer) {
+        LockSupport.unpark(timer);
+    }
+
+    public void detach(Thread timer) {
+        // nothing waits for the timer
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Create Date: 2026-10-19 20:04:37
+ */
+package com.github.stuxuhai.jcron;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * Enforces the run timeouts of a {@link CronThreadPoolExecutor} with one thread waiting on a heap of deadlines, so a
+ * run with a timeout costs a heap insertion instead of a timer task. A run finishing in time only marks its deadline,
+ * which is dropped from the heap when it comes up, or by a purge once many have piled up.
+ */
+final class Watchdog implements Runnable {
+
+    private static final int PURGE_THRESHOLD = 4096;
+
+    private final ThreadFactory threadFactory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<Deadline>();
+    private final AtomicInteger finished = new AtomicInteger();
+    private Thread thread;
+    private boolean stopped;
+
+    Watchdog(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Interrupts {@code thread} if the run has not finished at {@code deadline} on {@link System#nanoTime()}.
+     */
+    Deadline watch(long deadline, Thread thread) {
+        return add(new Deadline(deadline, thread, null));
+    }
+
+    /**
+     * Cancels {@code future} with interruption if it is not done at {@code deadline} on {@link System#nanoTime()}.
+     */
+    Deadline watch(long deadline, Future<?> future) {
+        return add(new Deadline(deadline, null, future));
+    }
+
+    private Deadline add(Deadline deadline) {
+        lock.lock();
+        try {
+            if (thread == null && !stopped) {
+                thread = threadFactory.newThread(this);
+                thread.start();
+            }
+            deadlines.add(deadline);
+            if (deadlines.peek() == deadline) {
+                changed.signal();
+            }
+            return deadline;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            deadlines.clear();
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void run() {
+        lock.lock();
+        try {
+            while (!stopped) {
+                Deadline first = deadlines.peek();
+                if (first == null) {
+                    changed.await();
+                } else if (first.isFinished()) {
+                    deadlines.poll();
+                } else if (first.deadline - System.nanoTime() > 0) {
+                    changed.awaitNanos(first.deadline - System.nanoTime());
+                } else {
+                    deadlines.poll();
+                    lock.unlock();
+                    try {
+                        first.expire();
+                    } finally {
+                        lock.lock();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // the executor is shutting down
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finished() {
+        if (finished.incrementAndGet() < PURGE_THRESHOLD) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            finished.set(0);
+            List<Deadline> running = new ArrayList<Deadline>(deadlines.size());
+            for (Deadline deadline : deadlines) {
+                if (!deadline.isFinished()) {
+                    running.add(deadline);
+                }
+            }
+            deadlines.clear();
+            deadlines.addAll(running);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    final class Deadline implements Comparable<Deadline> {
+
+        private final long deadline;
+        private final Thread thread;
+        private final Future<?> future;
+        private boolean done;
+        private boolean expired;
+
+        Deadline(long deadline, Thread thread, Future<?> future) {
+            this.deadline = deadline;
+            this.thread = thread;
+            this.future = future;
+        }
+
+        synchronized boolean isFinished() {
+            return done;
+        }
+
+        private void expire() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                expired = true;
+                if (thread != null) {
+                    thread.interrupt();
+                    return;
+                }
+            }
+            future.cancel(true);
+        }
+
+        /**
+         * Called when the run ends, returns false if it timed out. The interrupt left by the watchdog on a thread
+         * which ran the task is cleared, as it was meant for that run only.
+         */
+        boolean finish() {
+            synchronized (this) {
+                if (expired) {
+                    if (thread != null) {
+                        Thread.interrupted();
+                    }
+                    return false;
+                }
+                done = true;
+            }
+            finished();
+            return true;
+        }
+
+        public int compareTo(Deadline o) {
+            return Longs.compare(deadline, o.deadline);
+        }
+    }
+}
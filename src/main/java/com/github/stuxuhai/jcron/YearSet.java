@@ -0,0 +1,232 @@
+/*
+ * Create Date: 2026-10-19 14:05:48
+ */
+package com.github.stuxuhai.jcron;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.stuxuhai.jcron.AbstractParser.DurationField;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Range;
+
+/**
+ * The year field, kept as a list of arithmetic rules ({@code from}, {@code to}, {@code step}) instead of the
+ * enumerated years, so {@code *} or {@code 2020/4} cost three ints however far ahead the schedule is evaluated.
+ */
+final class YearSet {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("(\\d+)-(\\d+)");
+    private static final Pattern STEP_PATTERN = Pattern.compile("(\\d+|\\*)/(\\d+)");
+
+    static final YearSet EMPTY = new YearSet(new int[0], null);
+
+    private final int[] rules;
+    // when not null, a year must also belong to this set
+    private final YearSet and;
+
+    private YearSet(int[] rules, YearSet and) {
+        this.rules = rules;
+        this.and = and;
+    }
+
+    static YearSet parse(String cronFieldExp, Range<Integer> range) throws ParseException {
+        int[] rules = new int[0];
+        for (String str : Splitter.on(",").omitEmptyStrings().split(cronFieldExp)) {
+            int from;
+            int to;
+            int step = 1;
+            Matcher m;
+            if ("*".equals(str)) {
+                from = range.lowerEndpoint();
+                to = range.upperEndpoint();
+            } else if ((m = RANGE_PATTERN.matcher(str)).matches()) {
+                from = Integer.parseInt(m.group(1));
+                to = Integer.parseInt(m.group(2));
+            } else if ((m = STEP_PATTERN.matcher(str)).matches()) {
+                from = "*".equals(m.group(1)) ? range.lowerEndpoint() : Integer.parseInt(m.group(1));
+                to = range.upperEndpoint();
+                step = Integer.parseInt(m.group(2));
+            } else if (str.matches("\\d+")) {
+                from = Integer.parseInt(str);
+                to = from;
+            } else {
+                throw new ParseException(String.format("Invalid value of %s: %s.", DurationField.YEAR.name, str), -1);
+            }
+
+            if (from > to || step < 1 || !range.contains(from) || !range.contains(to)) {
+                throw new ParseException(
+                        String.format("Invalid value of %s: %s, out of range %s", DurationField.YEAR.name, str, range.toString().replace("‥", ", ")), -1);
+            }
+
+            rules = Arrays.copyOf(rules, rules.length + 3);
+            rules[rules.length - 3] = from;
+            rules[rules.length - 2] = to;
+            rules[rules.length - 1] = step;
+        }
+
+        return new YearSet(rules, null);
+    }
+
+    YearSet intersect(YearSet other) {
+        return new YearSet(rules, and == null ? other : and.intersect(other));
+    }
+
+    /**
+     * Returns the union of both sets, or null if either of them is an intersection.
+     */
+    YearSet union(YearSet other) {
+        if (and != null || other.and != null) {
+            return null;
+        }
+
+        int[] union = Arrays.copyOf(rules, rules.length + other.rules.length);
+        System.arraycopy(other.rules, 0, union, rules.length, other.rules.length);
+        return new YearSet(union, null);
+    }
+
+    /**
+     * Returns the smallest year of the set not less than {@code year}, or -1.
+     */
+    int next(int year) {
+        while (and != null) {
+            int candidate = nextOfRules(year);
+            int other = candidate < 0 ? -1 : and.next(candidate);
+            if (other == candidate) {
+                return candidate;
+            }
+            if (other < 0) {
+                return -1;
+            }
+            year = other;
+        }
+        return nextOfRules(year);
+    }
+
+    /**
+     * Returns the largest year of the set not greater than {@code year}, or -1.
+     */
+    int previous(int year) {
+        while (and != null) {
+            int candidate = previousOfRules(year);
+            int other = candidate < 0 ? -1 : and.previous(candidate);
+            if (other == candidate) {
+                return candidate;
+            }
+            if (other < 0) {
+                return -1;
+            }
+            year = other;
+        }
+        return previousOfRules(year);
+    }
+
+    private int nextOfRules(int year) {
+        int result = -1;
+        for (int i = 0; i < rules.length; i += 3) {
+            int from = rules[i];
+            int to = rules[i + 1];
+            int step = rules[i + 2];
+            int candidate = year <= from ? from : from + (year - from + step - 1) / step * step;
+            if (candidate <= to && (result < 0 || candidate < result)) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
+    private int previousOfRules(int year) {
+        int result = -1;
+        for (int i = 0; i < rules.length; i += 3) {
+            int from = rules[i];
+            int to = rules[i + 1];
+            int step = rules[i + 2];
+            if (year < from) {
+                continue;
+            }
+            int candidate = from + (Math.min(year, to) - from) / step * step;
+            if (candidate > result) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
+    boolean contains(int year) {
+        return next(year) == year;
+    }
+
+    /**
+     * Whether the set is one contiguous run of years.
+     */
+    boolean isContiguous() {
+        return and == null && rules.length == 3 && (rules[2] == 1 || rules[0] == rules[1]);
+    }
+
+    int encodedLength() {
+        return 2 + rules.length * 2 + 1 + (and == null ? 0 : and.encodedLength());
+    }
+
+    /**
+     * Writes the number of rules, the rules as shorts, and the set intersected with this one if any.
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putShort((short) (rules.length / 3));
+        for (int rule : rules) {
+            buffer.putShort((short) rule);
+        }
+        buffer.put((byte) (and == null ? 0 : 1));
+        if (and != null) {
+            and.writeTo(buffer);
+        }
+    }
+
+    /**
+     * Reads a set written by {@link #writeTo(ByteBuffer)}, whose rules have to lie within {@code range}. The sets it
+     * is intersected with are read in a loop, so a forged chain cannot overflow the stack.
+     */
+    static YearSet readFrom(ByteBuffer buffer, Range<Integer> range) {
+        List<int[]> chain = new ArrayList<int[]>();
+        do {
+            int[] rules = new int[(buffer.getShort() & 0xFFFF) * 3];
+            for (int i = 0; i < rules.length; i++) {
+                rules[i] = buffer.getShort();
+            }
+            for (int i = 0; i < rules.length; i += 3) {
+                if (rules[i] > rules[i + 1] || rules[i + 2] < 1 || !range.contains(rules[i]) || !range.contains(rules[i + 1])) {
+                    throw new IllegalArgumentException("Invalid year rule: " + rules[i] + "-" + rules[i + 1] + "/" + rules[i + 2]);
+                }
+            }
+            chain.add(rules);
+        } while (buffer.get() != 0);
+
+        YearSet result = null;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            result = new YearSet(chain.get(i), result);
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(rules) * 31 + (and == null ? 0 : and.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof YearSet)) {
+            return false;
+        }
+
+        YearSet other = (YearSet) obj;
+        return Arrays.equals(rules, other.rules) && (and == null ? other.and == null : and.equals(other.and));
+    }
+}
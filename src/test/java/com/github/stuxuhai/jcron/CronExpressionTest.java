@@ -6,9 +6,21 @@ package com.github.stuxuhai.jcron;
 
 import static org.junit.Assert.*;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.junit.Test;
 
 public class CronExpressionTest {
@@ -218,4 +230,542 @@ public class CronExpressionTest {
     public void shallNotSupportRollingPeriod() throws ParseException {
         new CronExpression("* * 5-1 * * ?").getTimeAfter(new DateTime());
     }
+
+    @Test
+    public void checkHashedValue() throws ParseException {
+        DateTime dateTime = new DateTime(2012, 4, 10, 13, 00);
+        DateTime first = new CronExpression("0 H * * * ?", "job-1").getTimeAfter(dateTime);
+        assertEquals(first, new CronExpression("0 H * * * ?", "job-1").getTimeAfter(dateTime));
+        assertEquals(0, first.getSecondOfMinute());
+
+        DateTime ranged = new CronExpression("0 H(10-19) * * * ?", "job-1").getTimeAfter(dateTime);
+        assertTrue(ranged.getMinuteOfHour() >= 10 && ranged.getMinuteOfHour() <= 19);
+
+        DateTime stepped = new CronExpression("0 H/15 * * * ?", "job-1").getTimeAfter(dateTime);
+        DateTime next = new CronExpression("0 H/15 * * * ?", "job-1").getTimeAfter(stepped);
+        assertEquals(stepped.plusMinutes(15), next);
+
+        boolean spread = false;
+        for (int i = 0; i < 10; i++) {
+            if (!first.equals(new CronExpression("0 H * * * ?", "job-" + i).getTimeAfter(dateTime))) {
+                spread = true;
+            }
+        }
+        assertTrue(spread);
+    }
+
+    @Test(expected = ParseException.class)
+    public void checkHashedValueOutOfRange() throws ParseException {
+        new CronExpression("0 H(10-70) * * * ?", "job-1").getTimeAfter(new DateTime());
+    }
+
+    @Test
+    public void checkUnixDialect() throws ParseException {
+        assertEquals(new CronExpression("30 9 * * 1-5", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 6, 10, 00)), new DateTime(2012, 4, 9, 9, 30));
+        assertEquals(new CronExpression("0 0 * * 0", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 2, 00, 00)), new DateTime(2012, 4, 8, 00, 00));
+        assertEquals(new CronExpression("0 0 * * SUN-MON", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 8, 00, 00)), new DateTime(2012, 4, 9, 00, 00));
+        assertEquals(new CronExpression("*/20 * * * *", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 8, 00, 00)), new DateTime(2012, 4, 8, 00, 20));
+        assertEquals(new CronExpression("0 0 */10 * *", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 4, 11, 00, 00));
+
+        // day-of-month and day-of-week are combined with OR
+        CronExpression cronExpression = new CronExpression("0 0 13 * 5", CronDialect.UNIX);
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 4, 6, 00, 00));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 5, 11, 00, 00)), new DateTime(2012, 5, 13, 00, 00));
+        assertEquals(cronExpression.getTimeBefore(new DateTime(2012, 5, 14, 00, 00)), new DateTime(2012, 5, 13, 00, 00));
+
+        // unless one of them starts with *, as in Vixie cron
+        assertEquals(new CronExpression("0 0 */2 * 1", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 4, 9, 00, 00));
+        assertEquals(new CronExpression("0 0 13 * */2", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 5, 13, 00, 00));
+
+        // Sunday is 0 with the # and L modifiers too
+        assertEquals(new CronExpression("0 0 * * 0#2", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 4, 8, 00, 00));
+        assertEquals(new CronExpression("0 0 * * SUN#2", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 4, 8, 00, 00));
+        assertEquals(new CronExpression("0 0 * * 0L", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 4, 29, 00, 00));
+    }
+
+    @Test
+    public void checkStepFromLowestValue() throws ParseException {
+        CronExpression cronExpression = new CronExpression("0 0 0 1 */3 ?");
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 1, 1, 00, 00)), new DateTime(2012, 4, 1, 00, 00));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 10, 1, 00, 00)), new DateTime(2013, 1, 1, 00, 00));
+        assertEquals(new CronExpression("0 0 1 */3 *", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 1, 00, 00)), new DateTime(2012, 7, 1, 00, 00));
+        assertEquals(new CronExpression("0 0 0 */10 * ?").getTimeAfter(new DateTime(2012, 4, 21, 00, 00)), new DateTime(2012, 5, 1, 00, 00));
+    }
+
+    @Test
+    public void checkSpringDialect() throws ParseException {
+        assertEquals(new CronExpression("0 0 9 * * MON-FRI", CronDialect.SPRING).getTimeAfter(new DateTime(2012, 4, 6, 10, 00)),
+                new DateTime(2012, 4, 9, 9, 00));
+        assertEquals(new CronExpression("0 0 9 ? * 0", CronDialect.SPRING).getTimeAfter(new DateTime(2012, 4, 6, 10, 00)), new DateTime(2012, 4, 8, 9, 00));
+
+        // day-of-month and day-of-week are combined with AND
+        assertEquals(new CronExpression("0 0 0 13 * FRI", CronDialect.SPRING).getTimeAfter(new DateTime(2012, 4, 14, 00, 00)),
+                new DateTime(2012, 7, 13, 00, 00));
+    }
+
+    @Test(expected = ParseException.class)
+    public void checkUnixDialectFieldCount() throws ParseException {
+        new CronExpression("0 0 0 * * ?", CronDialect.UNIX).getTimeAfter(new DateTime());
+    }
+
+    @Test
+    public void checkMacro() throws ParseException {
+        assertEquals(new CronExpression("@hourly").getTimeAfter(new DateTime(2012, 4, 10, 13, 01)), new DateTime(2012, 4, 10, 14, 00));
+        assertEquals(new CronExpression("@daily").getTimeAfter(new DateTime(2012, 4, 10, 13, 01)), new DateTime(2012, 4, 11, 00, 00));
+        assertEquals(new CronExpression("@weekly").getTimeAfter(new DateTime(2012, 4, 10, 13, 01)), new DateTime(2012, 4, 15, 00, 00));
+        assertEquals(new CronExpression("@monthly", CronDialect.UNIX).getTimeAfter(new DateTime(2012, 4, 10, 13, 01)), new DateTime(2012, 5, 1, 00, 00));
+        assertEquals(new CronExpression("@yearly").getTimeBefore(new DateTime(2012, 4, 10, 13, 01)), new DateTime(2012, 1, 1, 00, 00));
+    }
+
+    @Test
+    public void checkEvery() throws ParseException {
+        DateTimeZone zone = DateTimeZone.forID("Asia/Kolkata");
+        CronExpression cronExpression = new CronExpression("@every 90s");
+        assertEquals(cronExpression.getTimeAfter(new DateTime(0, zone)), new DateTime(90000, zone));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(90000, zone)), new DateTime(180000, zone));
+        assertEquals(cronExpression.getTimeBefore(new DateTime(90000, zone)), new DateTime(0, zone));
+        assertEquals(new CronExpression("@every 1h30m").getTimeAfter(new DateTime(1, DateTimeZone.UTC)), new DateTime(5400000, DateTimeZone.UTC));
+        assertFalse(new CronExpression("@every 0s").isValid());
+        assertFalse(new CronExpression("@every").isValid());
+        assertFalse(new CronExpression("@every 99999999999999999999s").isValid());
+        assertFalse(new CronExpression("@every 9223372036854775807s").isValid());
+        assertFalse(new CronExpression("@every 106751991167d106751991167d").isValid());
+        assertTrue(new CronExpression("@every 106751991167d").isValid());
+        assertFalse(new CronExpression("@fortnightly").isValid());
+    }
+
+    @Test
+    public void checkFixedPeriodAcrossDaylightSaving() throws ParseException {
+        DateTimeZone zone = DateTimeZone.forID("America/New_York");
+        CronExpression cronExpression = new CronExpression("0 30 * * * ?");
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 3, 11, 1, 45, zone)), new DateTime(2012, 3, 11, 3, 30, zone));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 3, 11, 3, 45, zone)), new DateTime(2012, 3, 11, 4, 30, zone));
+        assertEquals(new CronExpression("0 0/15 * * * ?").getTimeBefore(new DateTime(2012, 3, 11, 3, 0, zone)), new DateTime(2012, 3, 11, 1, 45, zone));
+    }
+
+    @Test
+    public void checkYear() throws ParseException {
+        assertEquals(new CronExpression("0 0 0 1 1 ?").getTimeAfter(new DateTime(2099, 6, 1, 00, 00)), new DateTime(2100, 1, 1, 00, 00));
+        assertEquals(new CronExpression("0 0 0 1 1 ? 2020/50").getTimeAfter(new DateTime(2100, 6, 1, 00, 00)), new DateTime(2120, 1, 1, 00, 00));
+        assertEquals(new CronExpression("0 0 0 1 1 ? 2020/50").getTimeBefore(new DateTime(2100, 6, 1, 00, 00)), new DateTime(2070, 1, 1, 00, 00));
+        assertEquals(new CronExpression("0 0 0 1 1 ? 2015,2030-2031").getTimeAfter(new DateTime(2030, 6, 1, 00, 00)), new DateTime(2031, 1, 1, 00, 00));
+        assertNull(new CronExpression("0 0 0 1 1 ? 2015,2030-2031").getTimeAfter(new DateTime(2031, 6, 1, 00, 00)));
+        assertEquals(new CronExpression("0 0 0 29 2 ?").getTimeAfter(new DateTime(2399, 6, 1, 00, 00)), new DateTime(2400, 2, 29, 00, 00));
+        assertNull(new CronExpression("0 0 0 31 4 ?").getTimeAfter(new DateTime(2012, 4, 1, 00, 00)));
+    }
+
+    @Test(expected = ParseException.class)
+    public void checkYearOutOfRange() throws ParseException {
+        new CronExpression("0 0 0 1 1 ? 10000").getTimeAfter(new DateTime());
+    }
+
+    @Test
+    public void checkDenseSchedule() throws ParseException {
+        CronExpression cronExpression = new CronExpression("*/5 * 9-17 ? * 1-5");
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 4, 10, 13, 00, 01, 500)), new DateTime(2012, 4, 10, 13, 00, 05));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 4, 10, 13, 59, 55)), new DateTime(2012, 4, 10, 14, 00, 00));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 4, 10, 17, 59, 58)), new DateTime(2012, 4, 11, 9, 00, 00));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 4, 13, 17, 59, 55)), new DateTime(2012, 4, 16, 9, 00, 00));
+    }
+
+    @Test
+    public void checkMatches() throws ParseException {
+        assertTrue(new CronExpression("0 0/15 * * * ?").matches(new DateTime(2012, 4, 10, 13, 45)));
+        assertFalse(new CronExpression("0 0/15 * * * ?").matches(new DateTime(2012, 4, 10, 13, 46)));
+        assertFalse(new CronExpression("0 0/15 * * * ?").matches(new DateTime(2012, 4, 10, 13, 45, 00, 1)));
+        assertTrue(new CronExpression("0 0 0 ? * 5L").matches(new DateTime(2012, 4, 27, 00, 00)));
+        assertFalse(new CronExpression("0 0 0 ? * 5L").matches(new DateTime(2012, 4, 20, 00, 00)));
+        assertTrue(new CronExpression("0 0 0 ? * 5#3").matches(new DateTime(2012, 4, 20, 00, 00)));
+        assertTrue(new CronExpression("0 0 0 9W * ?").matches(new DateTime(2012, 6, 8, 00, 00)));
+        assertFalse(new CronExpression("0 0 0 9W * ?").matches(new DateTime(2012, 6, 9, 00, 00)));
+        assertTrue(new CronExpression("0 0 0 L * ?").matches(new DateTime(2012, 2, 29, 00, 00)));
+        assertTrue(new CronExpression("@every 90s").matches(180000, DateTimeZone.UTC));
+        assertFalse(new CronExpression("@every 90s").matches(181000, DateTimeZone.UTC));
+
+        DateTimeZone zone = DateTimeZone.forID("America/New_York");
+        CronExpression cronExpression = new CronExpression("0 30 1 * * ?");
+        DateTime first = cronExpression.getTimeAfter(new DateTime(2012, 11, 4, 0, 0, zone));
+        assertTrue(cronExpression.matches(first));
+        assertFalse(cronExpression.matches(first.plusHours(1)));
+        assertTrue(cronExpression.matches(first.getMillis(), zone));
+        assertFalse(cronExpression.matches(first.getMillis(), DateTimeZone.UTC));
+    }
+
+    @Test
+    public void checkIterateBefore() throws ParseException {
+        Iterator<DateTime> iterator = new CronExpression("0 0 0 ? * 5L").iterateBefore(new DateTime(2012, 5, 1, 00, 00));
+        assertEquals(iterator.next(), new DateTime(2012, 4, 27, 00, 00));
+        assertEquals(iterator.next(), new DateTime(2012, 3, 30, 00, 00));
+        assertEquals(iterator.next(), new DateTime(2012, 2, 24, 00, 00));
+
+        List<DateTime> times = new CronExpression("0 0/15 * * * ?").getTimeBefore(new DateTime(2012, 4, 10, 13, 00), 3);
+        assertEquals(times, Arrays.asList(new DateTime(2012, 4, 10, 12, 45), new DateTime(2012, 4, 10, 12, 30), new DateTime(2012, 4, 10, 12, 15)));
+
+        iterator = new CronExpression("0 0 0 1 1 ? 1971").iterateBefore(new DateTime(2012, 5, 1, 00, 00));
+        assertEquals(iterator.next(), new DateTime(1971, 1, 1, 00, 00));
+        assertFalse(iterator.hasNext());
+        assertNull(new CronExpression("0 0 0 1 1 ? 1971").getTimeBefore(new DateTime(1971, 1, 1, 00, 00), 10));
+    }
+
+    @Test
+    public void checkIterateAfter() throws ParseException {
+        Iterator<DateTime> iterator = new CronExpression("*/20 * 9-17 * * ?").iterateAfter(new DateTime(2012, 4, 10, 17, 59, 30));
+        assertEquals(iterator.next(), new DateTime(2012, 4, 10, 17, 59, 40));
+        assertEquals(iterator.next(), new DateTime(2012, 4, 11, 9, 00, 00));
+        assertEquals(iterator.next(), new DateTime(2012, 4, 11, 9, 00, 20));
+    }
+
+    @Test
+    public void checkCountBetween() throws ParseException {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00, DateTimeZone.UTC);
+        assertEquals(366L * 86400, new CronExpression("* * * * * ?").countBetween(start, start.plusYears(1)));
+        assertEquals(0L, new CronExpression("* * * * * ?").countBetween(start, start));
+        assertEquals(12L, new CronExpression("0 0 0 ? * 5L").countBetween(start, start.plusYears(1)));
+        assertEquals(261L * 9 * 4, new CronExpression("0 0/15 9-17 ? * 1-5").countBetween(start, start.plusYears(1)));
+        assertEquals(1L, new CronExpression("0 0 0 1 1 ?").countBetween(start, start.plusSeconds(1)));
+        assertEquals(4L, new CronExpression("@every 90s").countBetween(start, start.plusSeconds(360)));
+
+        // 02:30 does not exist on the day daylight saving time starts, 01:30 happens twice when it ends
+        DateTimeZone zone = DateTimeZone.forID("America/New_York");
+        DateTime newYork = new DateTime(2012, 1, 1, 00, 00, zone);
+        assertEquals(365L, new CronExpression("0 30 2 * * ?").countBetween(newYork, newYork.plusYears(1)));
+        assertEquals(366L, new CronExpression("0 30 1 * * ?").countBetween(newYork, newYork.plusYears(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkCountBetweenReversed() throws ParseException {
+        new CronExpression("* * * * * ?").countBetween(new DateTime(2012, 1, 2, 00, 00), new DateTime(2012, 1, 1, 00, 00));
+    }
+
+    @Test
+    public void checkIntersection() throws ParseException {
+        CronExpression cronExpression = CronExpression.intersection(new CronExpression("0 0 9 ? * 1"), new CronExpression("0 0 9 13 * ?"));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 1, 1, 00, 00)), new DateTime(2012, 2, 13, 9, 00));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 2, 13, 9, 00)), new DateTime(2012, 8, 13, 9, 00));
+
+        cronExpression = CronExpression.intersection(new CronExpression("0 0 0 1 1 ? 2020/4"), new CronExpression("0 0 0 1 1 ? 2021/3"));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 1, 1, 00, 00)), new DateTime(2024, 1, 1, 00, 00));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2024, 1, 1, 00, 00)), new DateTime(2036, 1, 1, 00, 00));
+
+        DateTime dateTime = new DateTime(2012, 1, 1, 00, 00, DateTimeZone.UTC);
+        cronExpression = CronExpression.intersection(new CronExpression("@every 90s"), new CronExpression("@every 1m"));
+        assertEquals(cronExpression.getTimeAfter(dateTime), dateTime.plusMinutes(3));
+        assertNull(CronExpression.intersection(new CronExpression("0 0 9 * * ?"), new CronExpression("0 0 10 * * ?")).getTimeAfter(dateTime));
+
+        assertEquals(new CronExpression("@every 90s").getCommonTimeAfter(dateTime, new CronExpression("0 * * * * ?")), dateTime.plusMinutes(3));
+        assertEquals(new CronExpression("0 0 9 ? * 1").getCommonTimeAfter(new DateTime(2012, 1, 1, 00, 00), new CronExpression("0 0 9 13 * ?")),
+                new DateTime(2012, 2, 13, 9, 00));
+        assertEquals(new CronExpression("@every 1d").getCommonTimeAfter(dateTime, new CronExpression("0 0 0 29 2 ?")), new DateTime(2012, 2, 29, 0, 0, DateTimeZone.UTC));
+    }
+
+    @Test(timeout = 10000)
+    public void checkDisjointCommonTime() throws ParseException {
+        DateTime dateTime = new DateTime(2012, 1, 1, 00, 00, DateTimeZone.UTC);
+        assertNull(new CronExpression("@every 2s").getCommonTimeAfter(dateTime, new CronExpression("1 * * * * ?")));
+        assertNull(new CronExpression("1 * * * * ?").getCommonTimeAfter(dateTime, new CronExpression("@every 2s")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkInexactIntersection() throws ParseException {
+        CronExpression.intersection(new CronExpression("@every 90s"), new CronExpression("0 * * * * ?"));
+    }
+
+    @Test
+    public void checkUnion() throws ParseException {
+        CronExpression cronExpression = CronExpression.union(new CronExpression("0 0 9 * * ?"), new CronExpression("0 0 17 * * ?"));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 4, 10, 10, 00)), new DateTime(2012, 4, 10, 17, 00));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2012, 4, 10, 17, 00)), new DateTime(2012, 4, 11, 9, 00));
+
+        cronExpression = CronExpression.union(new CronExpression("0 0 0 1 1 ? 2020"), new CronExpression("0 0 0 1 1 ? 2030"));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2021, 1, 1, 00, 00)), new DateTime(2030, 1, 1, 00, 00));
+    }
+
+    @Test
+    public void checkHashedOperands() throws ParseException {
+        DateTime dateTime = new DateTime(2026, 10, 19, 8, 00);
+        CronExpression first = CronExpression.intersection(new CronExpression("0 H * * * ?", "job-1"), new CronExpression("0 * 9-17 * * ?"));
+        CronExpression second = CronExpression.intersection(new CronExpression("0 H * * * ?", "job-2"), new CronExpression("0 * 9-17 * * ?"));
+        assertFalse(first.getTimeAfter(dateTime).equals(second.getTimeAfter(dateTime)));
+        assertFalse(first.equals(second));
+        assertEquals(CronExpression.intersection(new CronExpression("0 H * * * ?", "job-1"), new CronExpression("0 * 9-17 * * ?")), first);
+
+        first = CronExpression.union(new CronExpression("0 H 9 * * ?", "job-1"), new CronExpression("0 H 17 * * ?", "job-1"));
+        second = CronExpression.union(new CronExpression("0 H 9 * * ?", "job-2"), new CronExpression("0 H 17 * * ?", "job-2"));
+        assertFalse(first.getTimeAfter(dateTime).equals(second.getTimeAfter(dateTime)));
+        assertFalse(first.equals(second));
+        assertEquals(CronExpression.union(new CronExpression("0 H 9 * * ?", "job-1"), new CronExpression("0 H 17 * * ?", "job-1")).hashCode(), first.hashCode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkInexactUnion() throws ParseException {
+        CronExpression.union(new CronExpression("0 0 9 * * ?"), new CronExpression("0 30 17 * * ?"));
+    }
+
+    @Test
+    public void checkMerge() throws ParseException {
+        DateTime dateTime = new DateTime(2012, 4, 10, 8, 00, DateTimeZone.UTC);
+        Iterator<DateTime> iterator = CronExpression.merge(dateTime,
+                Arrays.asList(new CronExpression("0 0 9 * * ?"), new CronExpression("0 0 9,12 * * ?"), new CronExpression("@every 4h")));
+        assertEquals(iterator.next(), dateTime.withHourOfDay(9));
+        assertEquals(iterator.next(), dateTime.withHourOfDay(12));
+        assertEquals(iterator.next(), dateTime.withHourOfDay(16));
+        assertEquals(iterator.next(), dateTime.withHourOfDay(20));
+        assertEquals(iterator.next(), dateTime.plusDays(1).withHourOfDay(0));
+    }
+
+    @Test
+    public void checkFireTimeCache() throws ParseException {
+        FireTimeCache cache = new FireTimeCache(4, 1, TimeUnit.MINUTES);
+        CronExpression cronExpression = new CronExpression("0 0/15 9-17 ? * 1-5");
+        DateTime dateTime = new DateTime(2012, 4, 10, 16, 50, 00);
+        for (int i = 0; i < 20; i++) {
+            DateTime next = cache.getTimeAfter(cronExpression, dateTime);
+            assertEquals(next, cronExpression.getTimeAfter(dateTime));
+            dateTime = next.plusMinutes(i % 3 == 0 ? 0 : 7);
+        }
+        assertEquals(cache.getTimeAfter(new CronExpression("0 0/15 9-17 ? * 1-5"), new DateTime(2012, 4, 10, 9, 5)), new DateTime(2012, 4, 10, 9, 15));
+        assertEquals(cache.size(), 1L);
+
+        // callers lagging behind the window are answered alongside the ones keeping up
+        dateTime = new DateTime(2012, 4, 12, 9, 0);
+        for (int i = 0; i < 20; i++) {
+            DateTime late = dateTime.minusDays(1).plusMinutes(i);
+            assertEquals(cache.getTimeAfter(cronExpression, late), cronExpression.getTimeAfter(late));
+            assertEquals(cache.getTimeAfter(cronExpression, dateTime), cronExpression.getTimeAfter(dateTime));
+            dateTime = dateTime.plusMinutes(5);
+        }
+
+        cronExpression = new CronExpression("0 0 0 1 1 ? 2012-2013");
+        assertEquals(cache.getTimeAfter(cronExpression, new DateTime(2011, 4, 10, 00, 00)), new DateTime(2012, 1, 1, 00, 00));
+        assertEquals(cache.getTimeAfter(cronExpression, new DateTime(2012, 4, 10, 00, 00)), new DateTime(2013, 1, 1, 00, 00));
+        assertNull(cache.getTimeAfter(cronExpression, new DateTime(2013, 4, 10, 00, 00)));
+        assertEquals(cache.getTimeAfter(cronExpression, new DateTime(2010, 4, 10, 00, 00)), new DateTime(2012, 1, 1, 00, 00));
+
+        // expressions differing only by their hash keys keep their own timelines
+        dateTime = new DateTime(2026, 12, 23, 10, 00);
+        for (String hashKey : Arrays.asList("job-1", "job-2")) {
+            cronExpression = new CronExpression("0 H * * * ?", hashKey);
+            assertEquals(cache.getTimeAfter(cronExpression, dateTime), cronExpression.getTimeAfter(dateTime));
+        }
+        ExclusionCalendar calendar = ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 23)).build();
+        for (String hashKey : Arrays.asList("job-1", "job-2")) {
+            cronExpression = new CronExpression("0 H * * * ?", hashKey).excluding(calendar);
+            assertEquals(cache.getTimeAfter(cronExpression, dateTime), cronExpression.getTimeAfter(dateTime));
+        }
+    }
+
+    @Test
+    public void checkFootprint() throws Exception {
+        int instanceFields = 0;
+        for (Field field : CronExpression.class.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                instanceFields++;
+                assertFalse(Collection.class.isAssignableFrom(field.getType()));
+            }
+        }
+        assertEquals(instanceFields, 4);
+
+        assertSame(new CronExpression("0 0 * * * ?").compile(), new CronExpression("0 0 * * * ? *").compile());
+        assertSame(new CronExpression("@every 1h").compile(), new CronExpression("@every 60m").compile());
+
+        Field days = CompiledExpression.class.getDeclaredField("days");
+        days.setAccessible(true);
+        assertSame(days.get(new CronExpression("0 0 9 L * ?").compile()), days.get(new CronExpression("0 30 17 L * ?").compile()));
+        assertSame(days.get(new CronExpression("0 0 9 ? * 5#3").compile()), days.get(new CronExpression("0 0 12 ? * 5#3").compile()));
+    }
+
+    @Test
+    public void checkBinaryEncoding() throws ParseException {
+        List<CronExpression> expressions = Arrays.asList(new CronExpression("0 0/15 9-17 ? * 1-5"), new CronExpression("0 0 12 15W * ? 2020/4"),
+                new CronExpression("0 0 9 ? * 5#3"), new CronExpression("H H * * * ?", "job"), new CronExpression("*/5 9-17 * * MON-FRI", CronDialect.UNIX),
+                new CronExpression("@every 90s"), CronExpression.intersection(new CronExpression("0 0 0 1 1 ? 2020/4"), new CronExpression("0 0 0 1 1 ? 2021/3")));
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (CronExpression cronExpression : expressions) {
+            byte[] bytes = cronExpression.toByteArray();
+            assertTrue(bytes.length < 256);
+            buffer.put(bytes);
+        }
+
+        buffer.flip();
+        DateTime dateTime = new DateTime(2012, 4, 10, 13, 00);
+        for (CronExpression cronExpression : expressions) {
+            CronExpression decoded = CronExpression.fromByteBuffer(buffer);
+            assertEquals(decoded, cronExpression);
+            assertSame(decoded.compile(), cronExpression.compile());
+            assertEquals(decoded.getTimeAfter(dateTime), cronExpression.getTimeAfter(dateTime));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkUnsupportedEncodingVersion() throws ParseException {
+        byte[] bytes = new CronExpression("0 0 12 * * ?").toByteArray();
+        bytes[0] = 3;
+        CronExpression.fromByteBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    @Test
+    public void checkInvalidEncoding() throws ParseException {
+        byte[] bytes = new CronExpression("0 0 12 * * ? 2020").toByteArray();
+        checkInvalidEncoding(Arrays.copyOf(bytes, bytes.length - 5));
+        // the year rule is followed by the intersection flag and the exclusion calendar flag
+        checkInvalidEncoding(withShort(bytes, bytes.length - 8, -1));
+        checkInvalidEncoding(withShort(bytes, bytes.length - 6, 10000));
+
+        ExclusionCalendar calendar = ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 25)).build();
+        bytes = new CronExpression("0 0 12 * * ?").excluding(calendar).toByteArray();
+        // the calendar ends with the year and its twelve month masks
+        checkInvalidEncoding(withShort(bytes, bytes.length - 50, -2026));
+        checkInvalidEncoding(ByteBuffer.wrap(bytes.clone()).putInt(bytes.length - 4, 1).array());
+        checkInvalidEncoding(ByteBuffer.wrap(bytes.clone()).putInt(bytes.length - 44, 1 << 30).array());
+    }
+
+    private static byte[] withShort(byte[] bytes, int index, int value) {
+        return ByteBuffer.wrap(bytes.clone()).putShort(index, (short) value).array();
+    }
+
+    private static void checkInvalidEncoding(byte[] bytes) {
+        try {
+            CronExpression.fromByteBuffer(ByteBuffer.wrap(bytes));
+            fail("Decoded an invalid encoding");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void checkPreviousEncodingVersion() throws ParseException {
+        CronExpression cronExpression = new CronExpression("0 0/15 9-17 ? * 1-5");
+        byte[] bytes = cronExpression.toByteArray();
+        // version 1 had no exclusion calendar flag after the years
+        bytes = Arrays.copyOf(bytes, bytes.length - 1);
+        bytes[0] = 1;
+        CronExpression decoded = CronExpression.fromByteBuffer(ByteBuffer.wrap(bytes));
+        assertEquals(decoded, cronExpression);
+        assertSame(decoded.compile(), cronExpression.compile());
+    }
+
+    @Test
+    public void checkExclusionCalendar() throws ParseException {
+        ExclusionCalendar calendar = ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 25)).exclude(new LocalDate(2027, 1, 1))
+                .exclude(new LocalDate(2027, 2, 1), new LocalDate(2027, 3, 31)).build();
+        assertTrue(calendar.isExcluded(new LocalDate(2027, 3, 15)));
+        assertFalse(calendar.isExcluded(new LocalDate(2027, 4, 1)));
+
+        CronExpression cronExpression = new CronExpression("0 0 2 ? * 1-5").excluding(calendar);
+        assertEquals(cronExpression.toString(), "0 0 2 ? * 1-5 excluding holidays");
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2026, 12, 24, 3, 0)), new DateTime(2026, 12, 28, 2, 0));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2026, 12, 31, 3, 0)), new DateTime(2027, 1, 4, 2, 0));
+        assertEquals(cronExpression.getTimeAfter(new DateTime(2027, 1, 29, 3, 0)), new DateTime(2027, 4, 1, 2, 0));
+        assertEquals(cronExpression.getTimeBefore(new DateTime(2027, 4, 1, 0, 0)), new DateTime(2027, 1, 29, 2, 0));
+        assertFalse(cronExpression.matches(new DateTime(2026, 12, 25, 2, 0)));
+        assertTrue(cronExpression.matches(new DateTime(2026, 12, 24, 2, 0)));
+        // 261 weekdays in 2027, minus New Year's Day and the 43 weekdays of February and March
+        assertEquals(cronExpression.countBetween(new DateTime(2027, 1, 1, 0, 0), new DateTime(2028, 1, 1, 0, 0)), 217);
+
+        // a schedule which would otherwise fire at a fixed period
+        CronExpression quarterHours = new CronExpression("0 0/15 * * * ?").excluding(calendar);
+        assertEquals(quarterHours.getTimeAfter(new DateTime(2026, 12, 24, 23, 50)), new DateTime(2026, 12, 26, 0, 0));
+
+        CronExpression intersection = CronExpression.intersection(cronExpression, new CronExpression("0 0 2 1 * ?"));
+        assertEquals(intersection.getTimeAfter(new DateTime(2027, 1, 1, 0, 0)), new DateTime(2027, 4, 1, 2, 0));
+
+        byte[] bytes = cronExpression.toByteArray();
+        CronExpression decoded = CronExpression.fromByteBuffer(ByteBuffer.wrap(bytes));
+        assertSame(decoded.compile(), cronExpression.compile());
+        assertEquals(decoded.getTimeAfter(new DateTime(2027, 1, 29, 3, 0)), new DateTime(2027, 4, 1, 2, 0));
+    }
+
+    @Test
+    public void checkDaylightSavingOverlapInSameDay() throws ParseException {
+        DateTimeZone zone = DateTimeZone.forID("America/New_York");
+        // 01:xx is repeated on 2012-11-04, first at -04:00 from 05:00Z, then at -05:00 from 06:00Z
+        DateTime secondOccurrence = new DateTime(2012, 11, 4, 6, 10, DateTimeZone.UTC).withZone(zone);
+        CronExpression cronExpression = new CronExpression("0 30 1 * * ?");
+        assertFalse(cronExpression.matches(new DateTime(2012, 11, 4, 6, 30, DateTimeZone.UTC).withZone(zone)));
+        assertEquals(cronExpression.getTimeAfter(secondOccurrence), new DateTime(2012, 11, 5, 1, 30, zone));
+        assertEquals(new CronExpression("0 0/20 1-2 * * ?").getTimeAfter(secondOccurrence), new DateTime(2012, 11, 4, 2, 0, zone));
+    }
+
+    @Test
+    public void checkDaylightSavingOverlap() throws ParseException {
+        DateTimeZone zone = DateTimeZone.forID("America/New_York");
+        // 01:xx is repeated on 2012-11-04, first at -04:00 from 05:00Z, then at -05:00 from 06:00Z
+        assertEquals(new CronExpression("0 0/15 * * * ?").getTimeAfter(new DateTime(2012, 11, 4, 6, 10, DateTimeZone.UTC).withZone(zone)),
+                new DateTime(2012, 11, 4, 7, 0, DateTimeZone.UTC).withZone(zone));
+        for (String cronExp : Arrays.asList("0 0/15 * * * ?", "0 * * * * ?", "0 30 1 * * ?", "0 0/20 1-2 * * ?")) {
+            checkConsistency(new CronExpression(cronExp), new DateTime(2012, 11, 4, 4, 0, DateTimeZone.UTC).withZone(zone),
+                    new DateTime(2012, 11, 4, 8, 0, DateTimeZone.UTC).withZone(zone));
+        }
+    }
+
+    /**
+     * Checks getTimeAfter and getTimeBefore against matches and countBetween for the instants of [start, end).
+     */
+    private static void checkConsistency(CronExpression cronExpression, DateTime start, DateTime end) throws ParseException {
+        for (DateTime dateTime = start; dateTime.isBefore(end); dateTime = dateTime.plusMinutes(5)) {
+            DateTime next = cronExpression.getTimeAfter(dateTime);
+            assertTrue(next + " after " + dateTime, cronExpression.matches(next));
+            assertEquals(cronExpression.countBetween(dateTime.plusMillis(1), next.plusMillis(1)), 1);
+            for (DateTime minute = dateTime.withSecondOfMinute(0).withMillisOfSecond(0).plusMinutes(1); minute.isBefore(next); minute = minute.plusMinutes(1)) {
+                assertFalse(minute + " before " + next, cronExpression.matches(minute));
+            }
+
+            DateTime previous = cronExpression.getTimeBefore(dateTime);
+            assertTrue(previous + " before " + dateTime, cronExpression.matches(previous));
+            assertEquals(cronExpression.countBetween(previous, dateTime), 1);
+        }
+    }
+
+    @Test
+    public void checkTimeAfterInZones() throws ParseException {
+        List<DateTimeZone> zones = Arrays.asList(DateTimeZone.forID("Europe/Paris"), DateTimeZone.forID("Europe/Berlin"), DateTimeZone.forID("Europe/London"),
+                DateTimeZone.forID("America/New_York"), DateTimeZone.forID("America/Toronto"), DateTimeZone.forID("Australia/Sydney"),
+                DateTimeZone.forID("Asia/Shanghai"), DateTimeZone.forID("Asia/Kolkata"), DateTimeZone.UTC, DateTimeZone.forOffsetHours(8));
+        List<CronExpression> expressions = Arrays.asList(new CronExpression("0 30 2 * * ?"), new CronExpression("0 0 9 ? * 1-5"),
+                new CronExpression("0 0 0 1 1 ? 2012"), new CronExpression("0 0/15 * * * ?"));
+        for (CronExpression cronExpression : expressions) {
+            for (DateTime dateTime = new DateTime(2011, 12, 31, 0, 0, DateTimeZone.UTC); dateTime.getYear() < 2013; dateTime = dateTime.plusHours(37)) {
+                Map<DateTimeZone, DateTime> times = cronExpression.getTimeAfter(dateTime, zones);
+                assertEquals(times.keySet(), new HashSet<DateTimeZone>(zones));
+                for (DateTimeZone zone : zones) {
+                    assertEquals(times.get(zone), cronExpression.getTimeAfter(dateTime.withZone(zone)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checkSameNamedExclusionCalendars() throws ParseException {
+        CronExpression christmasEve = new CronExpression("0 0 9 * * ?").excluding(ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 24)).build());
+        CronExpression christmas = new CronExpression("0 0 9 * * ?").excluding(ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 25)).build());
+        assertFalse(christmasEve.equals(christmas));
+        assertEquals(christmasEve, new CronExpression("0 0 9 * * ?").excluding(ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 24)).build()));
+
+        FireTimeCache cache = new FireTimeCache();
+        DateTime dateTime = new DateTime(2026, 12, 23, 10, 0);
+        assertEquals(cache.getTimeAfter(christmas, dateTime), new DateTime(2026, 12, 24, 9, 0));
+        assertEquals(cache.getTimeAfter(christmasEve, dateTime), new DateTime(2026, 12, 25, 9, 0));
+    }
+
+    @Test
+    public void checkHashedExclusions() throws ParseException {
+        ExclusionCalendar calendar = ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 25)).build();
+        CronExpression first = new CronExpression("0 H * * * ?", "job-1").excluding(calendar);
+        CronExpression second = new CronExpression("0 H * * * ?", "job-2").excluding(calendar);
+        DateTime dateTime = new DateTime(2026, 12, 23, 10, 0);
+        assertFalse(first.getTimeAfter(dateTime).equals(second.getTimeAfter(dateTime)));
+        assertFalse(first.equals(second));
+        assertEquals(first, new CronExpression("0 H * * * ?", "job-1").excluding(calendar));
+        assertEquals(first.hashCode(), new CronExpression("0 H * * * ?", "job-1").excluding(calendar).hashCode());
+
+        CronExpression decoded = CronExpression.fromByteBuffer(ByteBuffer.wrap(second.toByteArray()));
+        assertEquals(decoded, second);
+        assertFalse(decoded.equals(first));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkExclusionOfEvery() throws ParseException {
+        new CronExpression("@every 1h").excluding(ExclusionCalendar.builder("holidays").exclude(new LocalDate(2026, 12, 25)).build());
+    }
 }
@@ -0,0 +1,845 @@
+/*
+ * Create Date: 2026-10-19 15:48:06
+ */
+package com.github.stuxuhai.jcron;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class CronThreadPoolExecutorTest {
+
+    @Test
+    public void checkBatchedDispatch() throws Exception {
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        final AtomicInteger batches = new AtomicInteger();
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, new Executor() {
+            public void execute(Runnable command) {
+                batches.incrementAndGet();
+                command.run();
+            }
+        }, clock);
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(executor.schedule(new Runnable() {
+                    public void run() {
+                        runs.incrementAndGet();
+                    }
+                }, new CronExpression("* * * * * ?")));
+            }
+
+            assertEquals(futures.get(0).getDelay(TimeUnit.MILLISECONDS), 1000);
+            clock.advanceBy(1000);
+            assertEquals(runs.get(), 100);
+            assertEquals(batches.get(), 4);
+
+            for (ScheduledFuture<?> future : futures) {
+                future.cancel(false);
+            }
+            clock.advanceBy(2000);
+            assertEquals(runs.get(), 100);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkFailingJobInBatch() throws Exception {
+        final List<Throwable> reported = new CopyOnWriteArrayList<Throwable>();
+        ExecutorService taskExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    public void uncaughtException(Thread t, Throwable e) {
+                        reported.add(e);
+                    }
+                }).build());
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, taskExecutor, clock);
+        try {
+            final Error error = new Error("failed run");
+            final AtomicInteger runs = new AtomicInteger();
+            executor.schedule("failing", new Runnable() {
+                public void run() {
+                    throw error;
+                }
+            }, new CronExpression("0 0 * * * ?"));
+            executor.schedule("counting", new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            }, new CronExpression("0 0 * * * ?"));
+
+            clock.advanceTo(start.plusHours(2));
+            awaitCount(runs, 2);
+            assertEquals(reported, Arrays.<Throwable> asList(error, error));
+            assertEquals(executor.getMetrics().getFailureCount(), 2);
+            assertFalse(executor.getJob("failing").isDone());
+        } finally {
+            executor.shutdownNow();
+            taskExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkFailingBucket() throws Exception {
+        final List<Throwable> reported = new CopyOnWriteArrayList<Throwable>();
+        final IllegalStateException failure = new IllegalStateException("failed dispatch");
+        final AtomicInteger dispatches = new AtomicInteger();
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, new Executor() {
+            public void execute(Runnable command) {
+                if (dispatches.incrementAndGet() == 1) {
+                    throw failure;
+                }
+                command.run();
+            }
+        }, clock);
+        executor.setThreadFactory(new ThreadFactoryBuilder().setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread t, Throwable e) {
+                reported.add(e);
+            }
+        }).build());
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            executor.schedule(new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            }, new CronExpression("* * * * * ?"));
+
+            clock.advanceBy(1000);
+            assertEquals(runs.get(), 0);
+            assertEquals(reported, Arrays.<Throwable> asList(failure));
+
+            // the timer survives the failure and fires the next buckets
+            clock.advanceBy(2000);
+            assertEquals(runs.get(), 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void checkCancel() throws Exception {
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1);
+        try {
+            ScheduledFuture<?> future = executor.schedule(new Runnable() {
+                public void run() {
+                }
+            }, new CronExpression("0 0 0 1 1 ?"));
+            assertTrue(future.cancel(false));
+            future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkExhaustedExpression() throws Exception {
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1);
+        try {
+            ScheduledFuture<?> future = executor.schedule(new Runnable() {
+                public void run() {
+                }
+            }, new CronExpression("0 0 0 1 1 ? 1971"));
+            assertTrue(future.isDone());
+            assertNull(future.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkTaskExecutor() throws Exception {
+        ExecutorService taskExecutor = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setNameFormat("task-%d").build());
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, taskExecutor, clock);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<String> threadName = new AtomicReference<String>();
+            executor.schedule(new Runnable() {
+                public void run() {
+                    threadName.set(Thread.currentThread().getName());
+                    latch.countDown();
+                }
+            }, new CronExpression("* * * * * ?"));
+
+            clock.advanceBy(1000);
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(threadName.get().startsWith("task-"));
+        } finally {
+            executor.shutdownNow();
+            taskExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkRegistry() throws Exception {
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            Runnable task = new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            };
+
+            ScheduledFuture<?> first = executor.schedule("job", task, new CronExpression("0 0 0 1 1 ?"));
+            ScheduledFuture<?> second = executor.schedule("job", task, new CronExpression("0 0 0 1 1 ?"));
+            assertTrue(first.isCancelled());
+            assertSame(executor.getJob("job"), second);
+            assertEquals(executor.getJobCount(), 1);
+
+            assertTrue(executor.reschedule("job", new CronExpression("* * * * * ?")));
+            assertEquals(second.getDelay(TimeUnit.MILLISECONDS), 1000);
+            clock.advanceBy(1500);
+            assertEquals(runs.get(), 1);
+
+            assertTrue(executor.remove("job"));
+            assertTrue(second.isCancelled());
+            assertFalse(executor.remove("job"));
+            assertFalse(executor.reschedule("job", new CronExpression("* * * * * ?")));
+            assertEquals(executor.getJobCount(), 0);
+
+            executor.schedule("once", task, new CronExpression("0 0 0 1 1 ? 1971"));
+            assertNull(executor.getJob("once"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkRemoveLeavesNoBucket() throws Exception {
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            Runnable task = new Runnable() {
+                public void run() {
+                }
+            };
+            for (int i = 0; i < 100; i++) {
+                executor.schedule("job" + i, task, new CronExpression("0 0 0 1 1 ?"));
+            }
+            executor.schedule("other", task, new CronExpression("0 0 0 1 2 ?"));
+            assertEquals(executor.getBucketCount(), 2);
+
+            for (int i = 0; i < 99; i++) {
+                assertTrue(executor.remove("job" + i));
+            }
+            assertEquals(executor.getBucketCount(), 2);
+            assertTrue(executor.remove("job99"));
+            assertEquals(executor.getBucketCount(), 1);
+            executor.getJob("other").cancel(false);
+            assertEquals(executor.getBucketCount(), 0);
+
+            // a job scheduled at the time of an emptied bucket goes to a new one
+            executor.schedule("job", task, new CronExpression("0 0 0 1 1 ?"));
+            assertEquals(executor.getBucketCount(), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkFiringPrecision() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00, 00, 500);
+        final SimulatedClock clock = new SimulatedClock(start);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final List<Long> times = new CopyOnWriteArrayList<Long>();
+            executor.schedule(new Runnable() {
+                public void run() {
+                    times.add(clock.currentTimeMillis());
+                }
+            }, new CronExpression("* * * * * ?"));
+
+            // each run starts on the clock at its fire time, however far the clock jumps
+            clock.advanceBy(2000);
+            clock.advanceBy(60000);
+            assertEquals(times.size(), 62);
+            for (int i = 0; i < times.size(); i++) {
+                assertEquals(times.get(i).longValue(), start.plusMillis(500).plusSeconds(i).getMillis());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void checkScheduleAfterShutdown() throws Exception {
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1);
+        executor.shutdown();
+        executor.schedule(new Runnable() {
+            public void run() {
+            }
+        }, new CronExpression("* * * * * ?"));
+    }
+
+    @Test
+    public void checkPauseAndResume() throws Exception {
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            CronFuture future = executor.schedule("job", new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            }, new CronExpression("0 0 0 1 1 ?"));
+
+            assertEquals(executor.getBucketCount(), 1);
+            assertTrue(future.reschedule(new CronExpression("0 0 0 1 2 ?")));
+            assertEquals(executor.getBucketCount(), 1);
+            assertTrue(future.pause());
+            assertFalse(future.pause());
+            assertTrue(future.isPaused());
+            assertEquals(executor.getBucketCount(), 0);
+            assertTrue(future.reschedule(new CronExpression("* * * * * ?")));
+            assertEquals(future.getExpression(), new CronExpression("* * * * * ?"));
+            assertEquals(executor.getBucketCount(), 0);
+            clock.advanceBy(10000);
+            assertEquals(runs.get(), 0);
+
+            assertTrue(executor.resume("job"));
+            assertFalse(future.resume());
+            clock.advanceBy(10000);
+            assertEquals(runs.get(), 10);
+
+            assertTrue(executor.pause("job"));
+            clock.advanceBy(10000);
+            assertEquals(runs.get(), 10);
+            assertFalse(future.isDone());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkFirePublisher() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            RecordingSubscriber drop = new RecordingSubscriber();
+            RecordingSubscriber latest = new RecordingSubscriber();
+            RecordingSubscriber buffer = new RecordingSubscriber();
+            executor.publish("drop", new CronExpression("0 0 * * * ?"), FirePublisher.Overflow.DROP, 0).subscribe(drop);
+            executor.publish("latest", new CronExpression("0 0 * * * ?"), FirePublisher.Overflow.LATEST, 0).subscribe(latest);
+            FirePublisher publisher = executor.publish("buffer", new CronExpression("0 0 * * * ?"), FirePublisher.Overflow.BUFFER, 3);
+            publisher.subscribe(buffer);
+
+            drop.subscription.request(2);
+            clock.advanceTo(start.plusHours(5));
+            drop.subscription.request(10);
+            latest.subscription.request(10);
+            buffer.subscription.request(10);
+            assertEquals(drop.events, Arrays.asList(new FireEvent("drop", start.plusHours(1)), new FireEvent("drop", start.plusHours(2))));
+            assertEquals(latest.events, Arrays.asList(new FireEvent("latest", start.plusHours(5))));
+            assertEquals(buffer.events, Arrays.asList(new FireEvent("buffer", start.plusHours(1)), new FireEvent("buffer", start.plusHours(2)),
+                    new FireEvent("buffer", start.plusHours(3))));
+            assertEquals(publisher.getDroppedCount(), 2);
+
+            clock.advanceTo(start.plusHours(6));
+            assertEquals(buffer.events.size(), 4);
+            assertEquals(executor.getJobCount(), 3);
+            assertFalse(buffer.completed);
+            assertTrue(executor.remove("buffer"));
+            assertTrue(buffer.completed);
+            assertEquals(executor.getJobCount(), 2);
+
+            buffer.subscription.cancel();
+            RecordingSubscriber late = new RecordingSubscriber();
+            publisher.subscribe(late);
+            assertTrue(late.completed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkThrowingSubscriber() throws Exception {
+        final List<Throwable> reported = new CopyOnWriteArrayList<Throwable>();
+        ExecutorService workers = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    public void uncaughtException(Thread t, Throwable e) {
+                        reported.add(e);
+                    }
+                }).build());
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, workers, clock);
+        try {
+            final RuntimeException error = new IllegalStateException("failed delivery");
+            RecordingSubscriber throwing = new RecordingSubscriber() {
+                @Override
+                public void onNext(FireEvent event) {
+                    super.onNext(event);
+                    throw error;
+                }
+            };
+            RecordingSubscriber recording = new RecordingSubscriber();
+            FirePublisher publisher = executor.publish("job", new CronExpression("0 0 * * * ?"), FirePublisher.Overflow.DROP, 0);
+            publisher.subscribe(throwing);
+            publisher.subscribe(recording);
+            throwing.subscription.request(10);
+            recording.subscription.request(10);
+
+            clock.advanceTo(start.plusHours(3));
+            for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); recording.events.size() < 3 && System.nanoTime() < deadline;) {
+                Thread.sleep(10);
+            }
+            assertEquals(recording.events.size(), 3);
+            assertEquals(throwing.events.size(), 1);
+            assertEquals(reported, Arrays.<Throwable> asList(error));
+
+            // once the task executor is shut down, the completion is delivered on the thread removing the job
+            workers.shutdown();
+            assertTrue(executor.remove("job"));
+            assertTrue(recording.completed);
+        } finally {
+            executor.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkAsyncJob() throws Exception {
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final List<SettableFuture<Object>> runs = new CopyOnWriteArrayList<SettableFuture<Object>>();
+            executor.scheduleAsync("job", new Supplier<ListenableFuture<?>>() {
+                public ListenableFuture<?> get() {
+                    SettableFuture<Object> future = SettableFuture.create();
+                    runs.add(future);
+                    return future;
+                }
+            }, new CronExpression("* * * * * ?"));
+
+            clock.advanceBy(3000);
+            assertEquals(runs.size(), 1);
+            assertEquals(executor.getMetrics().getSkippedCount(), 2);
+            runs.get(0).set(null);
+            assertEquals(executor.getMetrics().getRunCount(), 1);
+
+            clock.advanceBy(2000);
+            assertEquals(runs.size(), 2);
+            runs.get(1).setException(new IllegalStateException());
+            assertEquals(executor.getMetrics().getRunCount(), 2);
+            assertEquals(executor.getMetrics().getFailureCount(), 1);
+            assertEquals(executor.getMetrics().getSkippedCount(), 3);
+
+            executor.scheduleAsync("job", new Supplier<ListenableFuture<?>>() {
+                public ListenableFuture<?> get() {
+                    SettableFuture<Object> future = SettableFuture.create();
+                    runs.add(future);
+                    return future;
+                }
+            }, new CronExpression("* * * * * ?"), 50, TimeUnit.MILLISECONDS);
+            clock.advanceBy(1000);
+            assertEquals(runs.size(), 3);
+            // listeners run in the order they were added, after the one recording the run
+            final CountDownLatch recorded = new CountDownLatch(1);
+            runs.get(2).addListener(new Runnable() {
+                public void run() {
+                    recorded.countDown();
+                }
+            }, MoreExecutors.directExecutor());
+            assertTrue(recorded.await(10, TimeUnit.SECONDS));
+            assertTrue(runs.get(2).isCancelled());
+            assertEquals(executor.getMetrics().getTimeoutCount(), 1);
+            assertEquals(executor.getMetrics().getRunCount(), 3);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkFairDispatch() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final List<String> runs = new CopyOnWriteArrayList<String>();
+            for (int i = 0; i < 20; i++) {
+                executor.schedule("big-" + i, "big", new Runnable() {
+                    public void run() {
+                        runs.add("big");
+                    }
+                }, new CronExpression("0 * * * * ?"));
+            }
+            for (int i = 0; i < 2; i++) {
+                executor.schedule("small-" + i, "small", new Runnable() {
+                    public void run() {
+                        runs.add("small");
+                    }
+                }, new CronExpression("0 * * * * ?"));
+            }
+
+            clock.advanceTo(start.plusMinutes(1));
+            assertEquals(runs.indexOf("small"), 20);
+
+            runs.clear();
+            executor.setMaxInFlight(1);
+            executor.setGroupWeight("big", 3);
+            clock.advanceTo(start.plusMinutes(2));
+            assertEquals(runs.size(), 22);
+            assertEquals(runs.subList(0, 8), Arrays.asList("big", "big", "big", "small", "big", "big", "big", "small"));
+            assertEquals(executor.getInFlightCount(), 0);
+            assertEquals(executor.getMetrics().getGroups(), new HashSet<String>(Arrays.asList("big", "small")));
+            assertEquals(executor.getMetrics().getMaxLateness("small", TimeUnit.MILLISECONDS), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkMaxInFlight() throws Exception {
+        final int maxInFlight = 3;
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, workers);
+        try {
+            executor.setMaxInFlight(maxInFlight);
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(30);
+            for (int i = 0; i < 30; i++) {
+                executor.schedule("job-" + i, "group-" + i % 3, new Runnable() {
+                    public void run() {
+                        int current = running.incrementAndGet();
+                        while (true) {
+                            int max = maxRunning.get();
+                            if (current <= max || maxRunning.compareAndSet(max, current)) {
+                                break;
+                            }
+                        }
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                        latch.countDown();
+                    }
+                }, new CronExpression("* * * * * ?"));
+            }
+
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(maxRunning.get() <= maxInFlight);
+        } finally {
+            executor.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkQueuedRunsCoalesced() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, workers, clock);
+        try {
+            executor.setMaxInFlight(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final AtomicInteger runs = new AtomicInteger();
+            executor.schedule("job", new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+            }, new CronExpression("* * * * * ?"));
+
+            // the first run holds the only slot, the second waits and the next 8 are skipped
+            clock.advanceBy(10000);
+            awaitCount(runs, 1);
+            assertEquals(executor.getMetrics().getSkippedCount(), 8);
+            release.countDown();
+            awaitCount(runs, 2);
+        } finally {
+            executor.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkRejectedRunSkipped() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        }, clock);
+        try {
+            CronFuture future = executor.schedule("job", new Runnable() {
+                public void run() {
+                }
+            }, new CronExpression("* * * * * ?"));
+
+            clock.advanceBy(3000);
+            assertEquals(executor.getMetrics().getSkippedCount(), 3);
+            executor.setMaxInFlight(1);
+            clock.advanceBy(3000);
+            assertEquals(executor.getMetrics().getSkippedCount(), 6);
+            assertFalse(future.isDone());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkRunTimeout() throws Exception {
+        SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final CountDownLatch interrupted = new CountDownLatch(1);
+            executor.schedule("job", "", new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                }
+            }, new CronExpression("* * * * * ?"), 50, TimeUnit.MILLISECONDS);
+
+            // the run holds the timer thread until the watchdog interrupts it, the clock waits for it
+            clock.advanceBy(1000);
+            assertEquals(interrupted.getCount(), 0);
+            assertEquals(executor.getMetrics().getTimeoutCount(), 1);
+            assertEquals(executor.getMetrics().getFailureCount(), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkRunTimeoutAfterShutdown() throws Exception {
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1);
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch interrupted = new CountDownLatch(1);
+            executor.schedule("job", "", new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                }
+            }, new CronExpression("* * * * * ?"), 200, TimeUnit.MILLISECONDS);
+
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            executor.shutdown();
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(executor.getMetrics().getTimeoutCount(), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkLookahead() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(1, 8, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, workers, clock);
+        try {
+            executor.setLeadTime(1, TimeUnit.MINUTES);
+            executor.setAdaptivePoolSize(1, 8);
+            final AtomicInteger prepared = new AtomicInteger();
+            final AtomicInteger runs = new AtomicInteger();
+            for (int i = 0; i < 50; i++) {
+                executor.schedule("job-" + i, new PreparableTask() {
+                    public void prepare() {
+                        prepared.incrementAndGet();
+                    }
+
+                    public void run() {
+                        Uninterruptibles.sleepUninterruptibly(40, TimeUnit.MILLISECONDS);
+                        runs.incrementAndGet();
+                    }
+                }, new CronExpression("0 0 * * * ?"));
+            }
+
+            clock.advanceTo(start.plusMinutes(59));
+            awaitCount(prepared, 50);
+            assertEquals(runs.get(), 0);
+            assertEquals(workers.getCorePoolSize(), 1);
+
+            clock.advanceTo(start.plusHours(1));
+            awaitCount(runs, 50);
+
+            // 50 runs of about 40 ms are due within the lead time
+            clock.advanceTo(start.plusMinutes(119));
+            assertTrue(workers.getCorePoolSize() >= 2);
+            assertTrue(workers.getPoolSize() >= 2);
+
+            clock.advanceTo(start.plusHours(2));
+            awaitCount(runs, 100);
+            for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); workers.getActiveCount() > 0 && System.nanoTime() < deadline;) {
+                Thread.sleep(10);
+            }
+            clock.advanceTo(start.plusMinutes(150));
+            assertEquals(workers.getCorePoolSize(), 1);
+        } finally {
+            executor.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkPoolSizedForLargestBucket() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        SimulatedClock clock = new SimulatedClock(start);
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(1, 8, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, workers, clock);
+        try {
+            executor.setLeadTime(10, TimeUnit.MINUTES);
+            executor.setAdaptivePoolSize(1, 8);
+            final AtomicInteger runs = new AtomicInteger();
+            for (int i = 0; i < 10; i++) {
+                executor.schedule("job-" + i, new Runnable() {
+                    public void run() {
+                        Uninterruptibles.sleepUninterruptibly(120, TimeUnit.MILLISECONDS);
+                        runs.incrementAndGet();
+                    }
+                }, new CronExpression("0 * * * * ?"));
+            }
+
+            clock.advanceTo(start.plusMinutes(1));
+            awaitCount(runs, 10);
+
+            // 10 buckets of about 1.2 s of runs are due within the lead time, each one fits in 2 threads
+            clock.advanceTo(start.plusMinutes(2));
+            assertEquals(workers.getCorePoolSize(), 2);
+            awaitCount(runs, 20);
+        } finally {
+            executor.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); count.get() < expected && System.nanoTime() < deadline;) {
+            Thread.sleep(10);
+        }
+        assertEquals(count.get(), expected);
+    }
+
+    private static class RecordingSubscriber implements FirePublisher.Subscriber {
+
+        private final List<FireEvent> events = new CopyOnWriteArrayList<FireEvent>();
+        private volatile FirePublisher.Subscription subscription;
+        private volatile boolean completed;
+
+        public void onSubscribe(FirePublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(FireEvent event) {
+            events.add(event);
+        }
+
+        public void onError(Throwable throwable) {
+            throw new AssertionError(throwable);
+        }
+
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Test
+    public void checkSimulatedClock() throws Exception {
+        DateTime start = new DateTime(2012, 1, 1, 00, 00);
+        final SimulatedClock clock = new SimulatedClock(start);
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final AtomicInteger hourly = new AtomicInteger();
+            executor.schedule(new Runnable() {
+                public void run() {
+                    hourly.incrementAndGet();
+                }
+            }, new CronExpression("0 0 * * * ?"));
+            final List<DateTime> times = new ArrayList<DateTime>();
+            executor.schedule("weekdays", new Runnable() {
+                public void run() {
+                    times.add(new DateTime(clock.currentTimeMillis()));
+                }
+            }, new CronExpression("0 0 2 ? * 1-5"));
+
+            clock.advanceTo(start.plusYears(1));
+            assertEquals(hourly.get(), 366 * 24);
+            assertEquals(times.size(), 261);
+            assertEquals(times.get(0), new DateTime(2012, 1, 2, 2, 00));
+            assertEquals(times.get(260), new DateTime(2012, 12, 31, 2, 00));
+            assertEquals(clock.currentTimeMillis(), start.plusYears(1).getMillis());
+
+            executor.remove("weekdays");
+            clock.advanceBy(TimeUnit.DAYS.toMillis(1));
+            assertEquals(hourly.get(), 367 * 24);
+            assertEquals(times.size(), 261);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        clock.advanceBy(1000);
+        assertEquals(clock.currentTimeMillis(), start.plusYears(1).plusDays(1).plusSeconds(1).getMillis());
+    }
+
+    @Test(timeout = 10000)
+    public void checkAdvanceFromTimer() throws Exception {
+        final SimulatedClock clock = new SimulatedClock(new DateTime(2012, 1, 1, 00, 00));
+        CronThreadPoolExecutor executor = new CronThreadPoolExecutor(1, MoreExecutors.directExecutor(), clock);
+        try {
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            executor.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        clock.advanceBy(1000);
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            }, new CronExpression("* * * * * ?"));
+
+            clock.advanceBy(1000);
+            assertTrue(error.get() instanceof IllegalStateException);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
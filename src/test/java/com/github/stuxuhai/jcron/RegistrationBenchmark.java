@@ -0,0 +1,75 @@
+/*
+ * Create Date: 2026-10-19 16:20:33
+ */
+package com.github.stuxuhai.jcron;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures registrations, reschedules and removals per second while the registered jobs fire every second.
+ * Run with {@code java RegistrationBenchmark [threads] [jobs] [seconds]}.
+ */
+public class RegistrationBenchmark {
+
+    private static final String[] EXPRESSIONS = { "* * * * * ?", "*/2 * * * * ?", "0/5 * * * * ?", "0 * * * * ?" };
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int jobCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        final CronExpression[] expressions = new CronExpression[EXPRESSIONS.length];
+        for (int i = 0; i < expressions.length; i++) {
+            expressions[i] = new CronExpression(EXPRESSIONS[i]);
+        }
+
+        final CronThreadPoolExecutor executor = new CronThreadPoolExecutor(Runtime.getRuntime().availableProcessors());
+        final AtomicLong runs = new AtomicLong();
+        final Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < jobCount; i++) {
+            executor.schedule("job-" + i, task, expressions[i % expressions.length]);
+        }
+
+        final AtomicLong operations = new AtomicLong();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread(new Runnable() {
+                public void run() {
+                    long count = 0;
+                    while (System.nanoTime() < deadline) {
+                        String jobId = "job-" + random.nextInt(jobCount);
+                        CronExpression expression = expressions[random.nextInt(expressions.length)];
+                        switch (random.nextInt(3)) {
+                        case 0:
+                            executor.schedule(jobId, task, expression);
+                            break;
+                        case 1:
+                            executor.reschedule(jobId, expression);
+                            break;
+                        default:
+                            executor.remove(jobId);
+                        }
+                        count++;
+                    }
+                    operations.addAndGet(count);
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        TimeUnit.NANOSECONDS.sleep(deadline - System.nanoTime());
+        executor.shutdownNow();
+        System.out.printf("%d threads, %d jobs: %.0f registry operations/s, %.0f runs/s, %d jobs left%n", threads, jobCount,
+                operations.get() / (double) seconds, runs.get() / (double) seconds, executor.getJobCount());
+    }
+}